@@ -0,0 +1,364 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.benchmark;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts bytesocks on a loopback port and drives it with many websocket clients,
+ * reporting end-to-end relay latency, throughput and memory use.
+ *
+ * <p>Each message starts with the {@link System#nanoTime()} it was sent at, so
+ * receivers (in the same JVM) can measure the time taken to relay it.</p>
+ *
+ * <p>The clients run in the same JVM as the server, so the memory figures are for
+ * the whole process (server + clients), not the server alone. They can't be divided
+ * by the number of connections to get the server's memory per connection.</p>
+ *
+ * <p>Usage: {@code java -cp bytesocks-benchmarks.jar me.lucko.bytesocks.benchmark.LoadGenerator [--option=value ...]}</p>
+ * <ul>
+ *     <li>{@code channels} - the number of channels to create (default 1000)</li>
+ *     <li>{@code clients} - the number of clients to connect to each channel (default 2)</li>
+ *     <li>{@code rate} - the total number of messages to send per second (default 10000)</li>
+ *     <li>{@code sizes} - the payload size mix, as size:weight pairs (default 128:90,4096:9,65536:1)</li>
+ *     <li>{@code warmup} - seconds to run before recording (default 10)</li>
+ *     <li>{@code duration} - seconds to record for (default 60)</li>
+ *     <li>{@code interval} - seconds between progress reports (default 5)</li>
+ *     <li>{@code verbose} - if server logging should be left at info (default false)</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("\"key\"\\s*:\\s*\"([a-zA-Z0-9]+)\"");
+
+    /** Max number of websocket handshakes in flight at once */
+    private static final int CONNECT_BATCH_SIZE = 256;
+
+    private final Map<String, String> options;
+    private final int channels;
+    private final int clientsPerChannel;
+    private final int rate;
+    private final int[] sizes;
+    private final int[] sizeWeights;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicBoolean recording = new AtomicBoolean();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    private final List<Client> clients = new ArrayList<>();
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.channels = intOption("channels", 1000);
+        this.clientsPerChannel = intOption("clients", 2);
+        this.rate = intOption("rate", 10000);
+
+        String[] sizeMix = options.getOrDefault("sizes", "128:90,4096:9,65536:1").split(",");
+        this.sizes = new int[sizeMix.length];
+        this.sizeWeights = new int[sizeMix.length];
+        for (int i = 0; i < sizeMix.length; i++) {
+            String[] parts = sizeMix[i].trim().split(":");
+            this.sizes[i] = Integer.parseInt(parts[0]);
+            this.sizeWeights[i] = (i == 0 ? 0 : this.sizeWeights[i - 1]) + (parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            if (eq == -1) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private int intOption(String key, int def) {
+        String value = this.options.get(key);
+        return value == null ? def : Integer.parseInt(value);
+    }
+
+    private void run() throws Exception {
+        if (!Boolean.parseBoolean(this.options.getOrDefault("verbose", "false"))) {
+            // don't log every connect/disconnect (the event log has its own logger, which doesn't inherit the root level)
+            Configurator.setRootLevel(Level.WARN);
+            Configurator.setLevel("bytesocks.events", Level.WARN);
+        }
+
+        try (LocalServer server = LocalServer.start(this.clientsPerChannel)) {
+            log("started bytesocks on port " + server.getPort());
+            HttpClient httpClient = HttpClient.newHttpClient();
+
+            log("creating " + this.channels + " channels");
+            List<String> keys = createChannels(httpClient, server);
+
+            log("connecting " + this.clientsPerChannel + " clients to each channel");
+            connectClients(httpClient, server, keys);
+
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            long start = System.nanoTime();
+            scheduler.scheduleAtFixedRate(new Sender(start), 0, 1, TimeUnit.MILLISECONDS);
+
+            int warmup = intOption("warmup", 10);
+            log("warming up for " + warmup + "s");
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+            resetCounters();
+            this.recording.set(true);
+
+            int duration = intOption("duration", 60);
+            int interval = Math.max(1, intOption("interval", 5));
+            log("recording for " + duration + "s");
+            long recordStart = System.nanoTime();
+            long lastReceived = 0;
+            long lastReport = recordStart;
+            for (int elapsed = 0; elapsed < duration; elapsed += interval) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(interval, duration - elapsed)));
+                long now = System.nanoTime();
+                long received = this.received.get();
+                log(String.format("%,.0f msg/s received, p50 %s, p99 %s, p999 %s",
+                        (received - lastReceived) / seconds(now - lastReport),
+                        formatNanos(this.latencies.percentile(50)),
+                        formatNanos(this.latencies.percentile(99)),
+                        formatNanos(this.latencies.percentile(99.9))
+                ));
+                lastReceived = received;
+                lastReport = now;
+            }
+
+            this.recording.set(false);
+            scheduler.shutdownNow();
+            printSummary(seconds(System.nanoTime() - recordStart));
+
+            for (Client client : this.clients) {
+                client.socket.abort();
+            }
+        }
+    }
+
+    private List<String> createChannels(HttpClient httpClient, LocalServer server) {
+        HttpRequest request = HttpRequest.newBuilder(server.createUri("")).GET().build();
+        List<String> keys = new ArrayList<>(this.channels);
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (int i = 0; i < this.channels; i++) {
+            pending.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(LoadGenerator::channelKey));
+            if (pending.size() == CONNECT_BATCH_SIZE || i == this.channels - 1) {
+                for (CompletableFuture<String> future : pending) {
+                    keys.add(future.join());
+                }
+                pending.clear();
+            }
+        }
+        return keys;
+    }
+
+    private static String channelKey(HttpResponse<String> response) {
+        Matcher matcher = KEY_PATTERN.matcher(response.body());
+        if (response.statusCode() != 201 || !matcher.find()) {
+            throw new IllegalStateException("Unable to create channel: " + response.statusCode() + " " + response.body());
+        }
+        return matcher.group(1);
+    }
+
+    private void connectClients(HttpClient httpClient, LocalServer server, List<String> keys) {
+        List<CompletableFuture<WebSocket>> pending = new ArrayList<>();
+        for (String key : keys) {
+            for (int i = 0; i < this.clientsPerChannel; i++) {
+                Client client = new Client();
+                this.clients.add(client);
+                pending.add(httpClient.newWebSocketBuilder()
+                        .buildAsync(server.channelUri(key), client)
+                        .thenApply(socket -> client.socket = socket));
+
+                if (pending.size() == CONNECT_BATCH_SIZE) {
+                    CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+                    pending.clear();
+                }
+            }
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+    }
+
+    private void resetCounters() {
+        this.sent.set(0);
+        this.skipped.set(0);
+        this.received.set(0);
+        this.receivedBytes.set(0);
+    }
+
+    private void printSummary(double seconds) {
+        Runtime runtime = Runtime.getRuntime();
+        long directMemory = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                directMemory = pool.getMemoryUsed();
+            }
+        }
+
+        System.out.println();
+        System.out.println("channels:        " + this.channels + " x " + this.clientsPerChannel + " clients");
+        System.out.printf("sent:            %,d (%,.0f msg/s, %,d skipped while a send was in progress)%n",
+                this.sent.get(), this.sent.get() / seconds, this.skipped.get());
+        System.out.printf("received:        %,d (%,.0f msg/s, %.1f MB/s)%n",
+                this.received.get(), this.received.get() / seconds, this.receivedBytes.get() / seconds / (1024 * 1024));
+        System.out.println("latency p50:     " + formatNanos(this.latencies.percentile(50)));
+        System.out.println("latency p99:     " + formatNanos(this.latencies.percentile(99)));
+        System.out.println("latency p999:    " + formatNanos(this.latencies.percentile(99.9)));
+        System.out.println("latency max:     " + formatNanos(this.latencies.percentile(100)));
+        // the server runs in this JVM, so these include the load generator's own clients
+        System.out.printf("process heap:    %,d MB (max %,d MB, server + clients)%n",
+                (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024), runtime.maxMemory() / (1024 * 1024));
+        System.out.printf("process direct:  %,d MB (server + clients)%n", directMemory / (1024 * 1024));
+    }
+
+    private int nextSize() {
+        int roll = ThreadLocalRandom.current().nextInt(this.sizeWeights[this.sizeWeights.length - 1]);
+        for (int i = 0; i < this.sizes.length; i++) {
+            if (roll < this.sizeWeights[i]) {
+                return this.sizes[i];
+            }
+        }
+        return this.sizes[this.sizes.length - 1];
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private static void log(String message) {
+        System.out.println("[load] " + message);
+    }
+
+    /**
+     * Sends messages at the target rate, spread across all clients in turn.
+     */
+    private final class Sender implements Runnable {
+        private final long start;
+        private long due;
+        private int nextClient;
+
+        Sender(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            long target = (long) (seconds(System.nanoTime() - this.start) * LoadGenerator.this.rate);
+            for (; this.due < target; this.due++) {
+                Client client = LoadGenerator.this.clients.get(this.nextClient);
+                this.nextClient = (this.nextClient + 1) % LoadGenerator.this.clients.size();
+                if (client.send(nextSize())) {
+                    LoadGenerator.this.sent.incrementAndGet();
+                } else {
+                    LoadGenerator.this.skipped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * A websocket client.
+     */
+    private final class Client implements WebSocket.Listener {
+        private final StringBuilder partial = new StringBuilder();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile WebSocket socket;
+
+        // returns false if the previous message is still being sent
+        boolean send(int size) {
+            WebSocket socket = this.socket;
+            if (socket == null || !this.sending.compareAndSet(false, true)) {
+                return false;
+            }
+
+            StringBuilder message = new StringBuilder(Math.max(size, 24));
+            message.append(System.nanoTime()).append(':');
+            while (message.length() < size) {
+                message.append('x');
+            }
+            socket.sendText(message, true).whenComplete((ws, ex) -> this.sending.set(false));
+            return true;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            this.partial.append(data);
+            if (last) {
+                long now = System.nanoTime();
+                int sep = this.partial.indexOf(":");
+                if (sep != -1 && LoadGenerator.this.recording.get()) {
+                    LoadGenerator.this.latencies.record(now - Long.parseLong(this.partial, 0, sep, 10));
+                    LoadGenerator.this.received.incrementAndGet();
+                    LoadGenerator.this.receivedBytes.addAndGet(this.partial.length());
+                }
+                this.partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.benchmark;
+
+import com.google.gson.JsonObject;
+import me.lucko.bytesocks.Bytesocks;
+import me.lucko.bytesocks.util.Configuration;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+
+/**
+ * A bytesocks instance running in-process on a free loopback port, with rate
+ * limits lifted, for driving with local clients.
+ */
+public final class LocalServer implements AutoCloseable {
+
+    private final Bytesocks bytesocks;
+    private final int port;
+
+    private LocalServer(Bytesocks bytesocks, int port) {
+        this.bytesocks = bytesocks;
+        this.port = port;
+    }
+
+    /**
+     * Starts a new server.
+     *
+     * @param maxClients the max number of clients per channel
+     * @return the server
+     * @throws IOException if the server couldn't be started
+     */
+    public static LocalServer start(int maxClients) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        JsonObject config = new JsonObject();
+        config.addProperty("host", "127.0.0.1");
+        config.addProperty("port", port);
+        config.addProperty("channelMaxClients", maxClients);
+
+        // every client connects from the same address, so lift the limits
+        config.addProperty("createRateLimit", Integer.MAX_VALUE);
+        config.addProperty("createSubnetRateLimit", 0);
+        config.addProperty("connectRateLimit", Integer.MAX_VALUE);
+        config.addProperty("connectSubnetRateLimit", 0);
+        config.addProperty("msgRateLimit", Integer.MAX_VALUE);
+        config.addProperty("msgSubnetRateLimit", 0);
+
+        return new LocalServer(new Bytesocks(new Configuration(config)), port);
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public URI createUri(String query) {
+        return URI.create("http://127.0.0.1:" + this.port + "/create" + (query.isEmpty() ? "" : "?" + query));
+    }
+
+    public URI channelUri(String key) {
+        return URI.create("ws://127.0.0.1:" + this.port + "/" + key);
+    }
+
+    @Override
+    public void close() {
+        this.bytesocks.close();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.benchmark;
+
+import io.jooby.Context;
+import io.jooby.WebSocket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates stand-in jooby {@link WebSocket}s for benchmarks.
+ *
+ * <p>The sockets are always open, remember their attributes, and report the given
+ * ip address. Sending and closing do nothing - benchmarks attach the socket to a
+ * netty channel directly and observe that instead.</p>
+ */
+public final class StubSockets {
+    private StubSockets() {}
+
+    public static WebSocket create(String ipAddress) {
+        Context context = proxy(Context.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "header":
+                    String value = "x-real-ip".equalsIgnoreCase((String) args[0]) ? ipAddress : null;
+                    return proxy(method.getReturnType(), headerValue(value));
+                case "getRemoteAddress":
+                    return ipAddress;
+                default:
+                    return defaultValue(proxy, method);
+            }
+        });
+
+        Map<String, Object> attributes = new HashMap<>();
+        return proxy(WebSocket.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getContext":
+                    return context;
+                case "isOpen":
+                    return true;
+                case "attribute":
+                    if (args.length == 1) {
+                        return attributes.get((String) args[0]);
+                    }
+                    attributes.put((String) args[0], args[1]);
+                    return proxy;
+                default:
+                    return defaultValue(proxy, method);
+            }
+        });
+    }
+
+    private static InvocationHandler headerValue(String value) {
+        return (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "valueOrNull":
+                    return value;
+                case "value":
+                    if (args != null && args.length == 1 && args[0] instanceof String) {
+                        return value != null ? value : args[0];
+                    }
+                    return value;
+                default:
+                    return defaultValue(proxy, method);
+            }
+        };
+    }
+
+    private static Object defaultValue(Object proxy, Method method) {
+        Class<?> type = method.getReturnType();
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (method.getName().equals("toString")) {
+            return "StubSocket";
+        }
+        if (type.isInstance(proxy)) {
+            // fluent setters
+            return proxy;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubSockets.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.benchmark;
+
+import me.lucko.bytesocks.ws.ChannelFeature;
+import me.lucko.bytesocks.ws.TrafficRecorder;
+import me.lucko.bytesocks.ws.TrafficRecorder.Event;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a recording made by {@link TrafficRecorder} against a local bytesocks
+ * instance, with the same timing.
+ *
+ * <p>Channels are created with the same features, clients join and leave at the
+ * recorded times, and each message is replaced by a payload of the recorded size.
+ * Events for channels or clients that existed before the recording started are
+ * skipped.</p>
+ *
+ * <p>Usage: {@code java -cp bytesocks-benchmarks.jar me.lucko.bytesocks.benchmark.TrafficReplayer <file> [speed] [--verbose]},
+ * where speed is a multiplier for how fast to replay (default 1.0).</p>
+ */
+public final class TrafficReplayer {
+
+    private static final Pattern KEY_PATTERN = Pattern.compile("\"key\"\\s*:\\s*\"([a-zA-Z0-9]+)\"");
+
+    /** The number of records to read from the file at a time */
+    private static final int READ_BATCH = 4096;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final LocalServer server;
+    private final double speed;
+
+    /** The channel keys, by recorded channel number */
+    private final Map<Integer, CompletableFuture<String>> channels = new HashMap<>();
+    /** The tail of each client's chain of sends, by recorded client number */
+    private final Map<Integer, CompletableFuture<WebSocket>> clients = new HashMap<>();
+
+    private final Map<Event, AtomicLong> replayed = new EnumMap<>(Event.class);
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private long maxLagNanos;
+
+    /** Payloads are only ever read, so the same arrays are shared by all messages */
+    private byte[] binaryPayload = new byte[0];
+    private String textPayload = "";
+
+    private TrafficReplayer(LocalServer server, double speed) {
+        this.server = server;
+        this.speed = speed;
+        for (Event event : Event.values()) {
+            this.replayed.put(event, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TrafficReplayer <file> [speed] [--verbose]");
+            System.exit(1);
+        }
+
+        Path file = Paths.get(args[0]);
+        double speed = args.length > 1 && !args[1].startsWith("--") ? Double.parseDouble(args[1]) : 1.0;
+        boolean verbose = args[args.length - 1].equals("--verbose");
+        if (!verbose) {
+            // don't log every connect/disconnect (the event log has its own logger, which doesn't inherit the root level)
+            Configurator.setRootLevel(Level.WARN);
+            Configurator.setLevel("bytesocks.events", Level.WARN);
+        }
+
+        try (LocalServer server = LocalServer.start(Integer.MAX_VALUE)) {
+            TrafficReplayer replayer = new TrafficReplayer(server, speed);
+            long start = System.nanoTime();
+            replayer.replay(file);
+            replayer.finish();
+            replayer.printSummary((System.nanoTime() - start) / 1e9);
+        }
+        System.exit(0);
+    }
+
+    private void replay(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TrafficRecorder.RECORD_SIZE * READ_BATCH).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(file, buffer, TrafficRecorder.RECORD_SIZE);
+            if (buffer.getInt(0) != TrafficRecorder.MAGIC || buffer.getInt(4) != TrafficRecorder.VERSION) {
+                throw new IOException("Not a traffic recording (or unsupported version): " + path);
+            }
+
+            long start = System.nanoTime();
+            while (true) {
+                buffer.clear();
+                if (readFully(file, buffer, buffer.capacity()) == 0) {
+                    break;
+                }
+
+                for (int offset = 0; offset + TrafficRecorder.RECORD_SIZE <= buffer.limit(); offset += TrafficRecorder.RECORD_SIZE) {
+                    Event event = Event.byId(buffer.getInt(offset + 8));
+                    if (event == null) {
+                        // reserved but never written
+                        continue;
+                    }
+
+                    waitUntil(start + (long) (buffer.getLong(offset) / this.speed));
+                    handle(event, buffer.getInt(offset + 12), buffer.getInt(offset + 16), buffer.getInt(offset + 20));
+                }
+            }
+        }
+    }
+
+    private static int readFully(FileChannel file, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer) == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+    private void waitUntil(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        this.maxLagNanos = Math.max(this.maxLagNanos, -wait);
+    }
+
+    private void handle(Event event, int channel, int client, int value) {
+        switch (event) {
+            case CREATE: {
+                this.channels.put(channel, createChannel(value));
+                break;
+            }
+            case JOIN: {
+                CompletableFuture<String> key = this.channels.get(channel);
+                if (key == null) {
+                    this.skipped.incrementAndGet();
+                    return;
+                }
+                this.clients.put(client, key.thenCompose(k -> this.httpClient.newWebSocketBuilder()
+                        .buildAsync(this.server.channelUri(k), new Listener())));
+                break;
+            }
+            case TEXT_MESSAGE:
+            case BINARY_MESSAGE: {
+                CompletableFuture<WebSocket> socket = this.clients.get(client);
+                if (socket == null) {
+                    this.skipped.incrementAndGet();
+                    return;
+                }
+                // create the payload now, as the send may happen on another thread
+                if (event == Event.BINARY_MESSAGE) {
+                    ByteBuffer payload = binaryPayload(value);
+                    this.clients.put(client, socket.thenCompose(ws -> ws.sendBinary(payload, true)));
+                } else {
+                    CharSequence payload = textPayload(value);
+                    this.clients.put(client, socket.thenCompose(ws -> ws.sendText(payload, true)));
+                }
+                break;
+            }
+            case LEAVE: {
+                CompletableFuture<WebSocket> socket = this.clients.remove(client);
+                if (socket == null) {
+                    this.skipped.incrementAndGet();
+                    return;
+                }
+                socket.thenCompose(ws -> ws.sendClose(WebSocket.NORMAL_CLOSURE, ""))
+                        .exceptionally(ex -> {
+                            this.failed.incrementAndGet();
+                            return null;
+                        });
+                break;
+            }
+            case CLOSE: {
+                this.channels.remove(channel);
+                break;
+            }
+        }
+        this.replayed.get(event).incrementAndGet();
+    }
+
+    private CompletableFuture<String> createChannel(int featureBits) {
+        StringJoiner features = new StringJoiner(",");
+        for (ChannelFeature feature : ChannelFeature.values()) {
+            if ((featureBits & (1 << feature.ordinal())) != 0) {
+                features.add(feature.getId());
+            }
+        }
+
+        String query = features.length() == 0 ? "" : "features=" + features;
+        HttpRequest request = HttpRequest.newBuilder(this.server.createUri(query)).GET().build();
+        return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            Matcher matcher = KEY_PATTERN.matcher(response.body());
+            if (response.statusCode() != 201 || !matcher.find()) {
+                throw new IllegalStateException("Unable to create channel: " + response.statusCode() + " " + response.body());
+            }
+            return matcher.group(1);
+        });
+    }
+
+    private ByteBuffer binaryPayload(int size) {
+        if (size > this.binaryPayload.length) {
+            this.binaryPayload = new byte[Math.max(size, this.binaryPayload.length * 2)];
+        }
+        return ByteBuffer.wrap(this.binaryPayload, 0, size);
+    }
+
+    private CharSequence textPayload(int size) {
+        if (size > this.textPayload.length()) {
+            this.textPayload = "x".repeat(Math.max(size, this.textPayload.length() * 2));
+        }
+        return CharBuffer.wrap(this.textPayload, 0, size);
+    }
+
+    // waits for outstanding sends, then disconnects the remaining clients
+    private void finish() {
+        for (CompletableFuture<WebSocket> socket : this.clients.values()) {
+            try {
+                socket.get(10, TimeUnit.SECONDS).abort();
+            } catch (Exception e) {
+                this.failed.incrementAndGet();
+            }
+        }
+    }
+
+    private void printSummary(double seconds) {
+        System.out.println();
+        System.out.printf("replayed in:     %.1fs (speed %.2fx)%n", seconds, this.speed);
+        for (Map.Entry<Event, AtomicLong> entry : this.replayed.entrySet()) {
+            System.out.printf("%-16s %,d%n", entry.getKey().name().toLowerCase() + ":", entry.getValue().get());
+        }
+        System.out.printf("skipped:         %,d (channel or client existed before recording started)%n", this.skipped.get());
+        System.out.printf("failed:          %,d%n", this.failed.get());
+        System.out.printf("received:        %,d messages%n", this.received.get());
+        System.out.printf("max lag:         %.2fms behind schedule%n", this.maxLagNanos / 1e6);
+    }
+
+    private final class Listener implements WebSocket.Listener {
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            if (last) {
+                TrafficReplayer.this.received.incrementAndGet();
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            if (last) {
+                TrafficReplayer.this.received.incrementAndGet();
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RateLimiter#check} for keys that are already tracked (hits),
+ * and for keys that have never been seen before (misses).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RateLimiterBenchmark {
+
+    /** The number of distinct addresses used for misses */
+    private static final int ADDRESSES = 1 << 20;
+    /** The number of addresses used for hits */
+    private static final int TRACKED_ADDRESSES = 64;
+
+    @Param({"false", "true"})
+    public boolean floodProtection;
+
+    private String[] addresses;
+    private RateLimiter hitLimiter;
+    private RateLimiter missLimiter;
+    private int hitIndex;
+    private int missIndex;
+
+    @Setup
+    public void setup() {
+        this.addresses = new String[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            this.addresses[i] = "10." + (i >>> 16 & 0xFF) + "." + (i >>> 8 & 0xFF) + "." + (i & 0xFF);
+        }
+
+        this.hitLimiter = newLimiter();
+        this.missLimiter = newLimiter();
+    }
+
+    private RateLimiter newLimiter() {
+        return new RateLimiter(1, 1000, 0, 0, null, this.floodProtection
+                ? new RateLimiter.FloodProtection(16384, 50, 100_000)
+                : null
+        );
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return this.hitLimiter.check(this.addresses[this.hitIndex++ & (TRACKED_ADDRESSES - 1)]);
+    }
+
+    @Benchmark
+    public boolean miss() {
+        if (this.missIndex == ADDRESSES) {
+            // start again with an empty limiter, so every key is new
+            this.missIndex = 0;
+            this.missLimiter = newLimiter();
+        }
+        return this.missLimiter.check(this.addresses[this.missIndex++]);
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.netty.channel.WriteBufferWaterMark;
+import me.lucko.bytesocks.benchmark.NoopTimer;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+import me.lucko.bytesocks.metrics.MetricLabels;
+import me.lucko.bytesocks.metrics.TopTalkers;
+import me.lucko.bytesocks.util.RateLimiter;
+import me.lucko.bytesocks.util.SubnetMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures creating, looking up and closing channels from several threads at once.
+ *
+ * <p>Writers repeatedly register and close channels, while readers look up a fixed
+ * set of existing channels, mirroring /create and connect requests arriving
+ * concurrently on different event loops.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChannelRegistryBenchmark {
+
+    /** The number of long-lived channels to look up */
+    private static final int CHANNELS = 10_000;
+    /** The number of ids each writer thread cycles through */
+    private static final int IDS_PER_THREAD = 1024;
+
+    private static final Set<ChannelFeature> NO_FEATURES = EnumSet.noneOf(ChannelFeature.class);
+
+    private ChannelRegistry registry;
+    private String[] ids;
+
+    @Setup
+    public void setup() {
+        this.registry = new ChannelRegistry(
+                new NoopTimer(),
+                new SubnetMask(24, 64),
+                new RateLimiter(2, 30),
+                5,
+                new OutboundQueue.Limits(16 * 1024 * 1024, 4096, OutboundQueue.OverflowPolicy.CLOSE, 1013, 0),
+                new WriteBufferWaterMark(256 * 1024, 1024 * 1024),
+                null,
+                null,
+                0,
+                EventLog.DISABLED,
+                new MetricLabels(Collections.emptyList()),
+                LatencyMonitor.DISABLED,
+                TopTalkers.DISABLED,
+                new MessageHistory.Limits(0, 0, 0),
+                0
+        );
+
+        this.ids = new String[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            this.ids[i] = "channel" + i;
+            this.registry.registerNewChannel(this.ids[i], "10.0." + (i >>> 8 & 0xFF) + "." + (i & 0xFF), NO_FEATURES);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+        private final String[] ids = new String[IDS_PER_THREAD];
+        private String ipAddress;
+        private int next;
+
+        @Setup
+        public void setup() {
+            int threadId = THREAD_IDS.incrementAndGet();
+            for (int i = 0; i < IDS_PER_THREAD; i++) {
+                this.ids[i] = "thread" + threadId + "x" + i;
+            }
+            this.ipAddress = "192.168." + (threadId & 0xFF) + ".1";
+        }
+
+        int nextIndex(int bound) {
+            int index = this.next;
+            this.next = index + 1 == bound ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void registerAndClose(ThreadState state) {
+        String id = state.ids[state.nextIndex(IDS_PER_THREAD)];
+        this.registry.registerNewChannel(id, state.ipAddress, NO_FEATURES);
+        this.registry.channelClosed(this.registry.getChannel(id));
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(6)
+    public Channel lookup(ThreadState state) {
+        return this.registry.getChannel(this.ids[state.nextIndex(CHANNELS)]);
+    }
+
+}
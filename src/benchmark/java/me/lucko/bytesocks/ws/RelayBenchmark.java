@@ -0,0 +1,181 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.jooby.WebSocket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import me.lucko.bytesocks.benchmark.NoopTimer;
+import me.lucko.bytesocks.benchmark.StubSockets;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+import me.lucko.bytesocks.metrics.MetricLabels;
+import me.lucko.bytesocks.metrics.TopTalkers;
+import me.lucko.bytesocks.util.RateLimiter;
+import me.lucko.bytesocks.util.SubnetMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures relaying a message from one client to the rest of a channel.
+ *
+ * <p>Each client is backed by an {@link EmbeddedChannel}, so this covers everything
+ * from {@link Channel#relay} through to the outbound queue writing the frame, without
+ * any network I/O.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RelayBenchmark {
+
+    /** How often to release the frames written to the embedded channels */
+    private static final int RELEASE_INTERVAL = 256;
+
+    @Param({"2", "5", "20", "100"})
+    public int clients;
+
+    @Param({"128", "8192"})
+    public int messageSize;
+
+    /** See {@link OutboundQueue.Limits}, -1 to flush every write */
+    @Param({"0", "-1"})
+    public long flushDelay;
+
+    /** If the recipients negotiated permessage-deflate */
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private Channel channel;
+    private Client sender;
+    private EmbeddedChannel[] nettyChannels;
+    private ByteBuf payload;
+    private int sent;
+
+    @Setup
+    public void setup() {
+        // effectively unlimited, so the limiter is exercised but never trips
+        RateLimiter rateLimiter = new RateLimiter(1, Integer.MAX_VALUE);
+        OutboundQueue.Limits outboundLimits = new OutboundQueue.Limits(Long.MAX_VALUE, Integer.MAX_VALUE, OutboundQueue.OverflowPolicy.CLOSE, 1013, this.flushDelay);
+
+        ChannelRegistry registry = new ChannelRegistry(
+                new NoopTimer(),
+                new SubnetMask(24, 64),
+                rateLimiter,
+                this.clients,
+                outboundLimits,
+                new WriteBufferWaterMark(256 * 1024, 1024 * 1024),
+                null,
+                this.compression ? new MessageCompressor(6, 0) : null,
+                0,
+                EventLog.DISABLED,
+                new MetricLabels(Collections.emptyList()),
+                LatencyMonitor.DISABLED,
+                TopTalkers.DISABLED,
+                new MessageHistory.Limits(0, 0, 0),
+                0
+        );
+        registry.registerNewChannel("benchmark", "127.0.0.1", EnumSet.noneOf(ChannelFeature.class));
+        this.channel = registry.getChannel("benchmark");
+
+        WebSocketServerExtension deflateExtension = new PerMessageDeflateServerExtensionHandshaker()
+                .handshakeExtension(new WebSocketExtensionData("permessage-deflate", Collections.emptyMap()));
+
+        this.nettyChannels = new EmbeddedChannel[this.clients];
+        for (int i = 0; i < this.clients; i++) {
+            EmbeddedChannel nettyChannel = new EmbeddedChannel();
+            if (this.compression) {
+                nettyChannel.attr(DeflateNegotiationHandler.EXTENSION).set(deflateExtension);
+            }
+            WebSocket socket = StubSockets.create("10.0.0." + (i + 1));
+            Client client = new Client(this.channel, socket, nettyChannel, outboundLimits);
+            socket.attribute("client", client);
+            this.channel.connect(client);
+
+            this.nettyChannels[i] = nettyChannel;
+            if (i == 0) {
+                this.sender = client;
+            }
+        }
+
+        // something that compresses roughly as well as a typical json payload
+        byte[] bytes = new byte[this.messageSize];
+        Random random = new Random(0);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(16));
+        }
+        this.payload = Unpooled.wrappedBuffer(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel nettyChannel : this.nettyChannels) {
+            nettyChannel.finishAndReleaseAll();
+        }
+        this.payload.release();
+    }
+
+    @Benchmark
+    public void relay() {
+        this.channel.relay(this.sender, new TextWebSocketFrame(this.payload.retainedDuplicate()));
+
+        // the end of an event loop iteration, when coalesced flushes run
+        for (EmbeddedChannel nettyChannel : this.nettyChannels) {
+            nettyChannel.runPendingTasks();
+        }
+
+        if (++this.sent == RELEASE_INTERVAL) {
+            this.sent = 0;
+            for (EmbeddedChannel nettyChannel : this.nettyChannels) {
+                nettyChannel.releaseOutbound();
+            }
+        }
+    }
+
+}
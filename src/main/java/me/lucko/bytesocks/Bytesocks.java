@@ -31,21 +31,32 @@ import io.jooby.Jooby;
 import io.jooby.Server;
 import io.jooby.ServerOptions;
 import io.jooby.netty.NettyServer;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
 import io.prometheus.client.hotspot.DefaultExports;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+import me.lucko.bytesocks.metrics.MetricLabels;
+import me.lucko.bytesocks.metrics.TopTalkers;
 import me.lucko.bytesocks.util.Configuration;
 import me.lucko.bytesocks.util.Configuration.Option;
 import me.lucko.bytesocks.util.EnvVars;
 import me.lucko.bytesocks.util.RateLimiter;
+import me.lucko.bytesocks.util.SubnetMask;
 import me.lucko.bytesocks.util.TokenGenerator;
 import me.lucko.bytesocks.ws.ChannelRegistry;
+import me.lucko.bytesocks.ws.MessageCompressor;
+import me.lucko.bytesocks.ws.MessageHistory;
+import me.lucko.bytesocks.ws.OutboundQueue;
+import me.lucko.bytesocks.ws.TrafficRecorder;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.io.IoBuilder;
 
+import java.io.IOException;
 import java.nio.file.Paths;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -73,32 +84,145 @@ public final class Bytesocks implements AutoCloseable {
         Runtime.getRuntime().addShutdownHook(new Thread(bytesocks::close, "Bytesocks Shutdown Thread"));
     }
 
+    /** The timer used for channel housekeeping */
+    private final Timer timer;
+
     private final ChannelRegistry channelRegistry;
 
+    /** The structured event log */
+    private final EventLog eventLog;
+
+    /** The traffic recorder, or null if traffic isn't being recorded */
+    private final TrafficRecorder recorder;
+
+    /** Times sampled messages and probes the event loops */
+    private final LatencyMonitor latencyMonitor;
+
     /** The web server instance */
     private final Server server;
 
-    public Bytesocks(Configuration config) {
+    public Bytesocks(Configuration config) throws IOException {
         // setup simple logger
         LOGGER.info("loading bytesocks...");
 
+        // setup a timer to expire channels & check sockets
+        this.timer = new HashedWheelTimer(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("bytesocks-channel-timer")
+                .build(), 1, TimeUnit.SECONDS);
+
+        // setup the event log, writing connection events as json lines from a background thread
+        this.eventLog = new EventLog(
+                config.getInt(Option.EVENT_LOG_BUFFER_SIZE, 8192),
+                config.getLongMap(Option.EVENT_LOG_SAMPLING)
+        );
+
+        // bound rate limiter memory when flooded by many distinct ip addresses
+        RateLimiter.FloodProtection floodProtection = null;
+        if (config.getBoolean(Option.RATE_LIMIT_FLOOD_PROTECTION, false)) {
+            floodProtection = new RateLimiter.FloodProtection(
+                    config.getInt(Option.RATE_LIMIT_FLOOD_SKETCH_WIDTH, 16384),
+                    config.getInt(Option.RATE_LIMIT_FLOOD_THRESHOLD, 50),
+                    config.getInt(Option.RATE_LIMIT_FLOOD_MAX_TRACKED, 100000)
+            );
+        }
+
+        // by default, group ipv4 addresses by /24 and ipv6 addresses by /64 when applying subnet limits
+        SubnetMask subnetMask = new SubnetMask(
+                config.getInt(Option.SUBNET_IPV4_PREFIX_LENGTH, 24),
+                config.getInt(Option.SUBNET_IPV6_PREFIX_LENGTH, 64)
+        );
+
+        // optionally record the shape of traffic (no message contents) for replaying later
+        String recorderDirectory = config.getString(Option.RECORDER_DIRECTORY, "");
+        this.recorder = recorderDirectory.isEmpty() ? null : new TrafficRecorder(
+                Paths.get(recorderDirectory),
+                config.getLong(Option.RECORDER_MAX_BYTES, 1024L * 1024 * 1024) // 1GB
+        );
+
+        // optionally support permessage-deflate, compressing each relayed message once for all recipients
+        MessageCompressor compressor = null;
+        if (config.getBoolean(Option.COMPRESSION, false)) {
+            compressor = new MessageCompressor(
+                    config.getInt(Option.COMPRESSION_LEVEL, 6),
+                    // by default, don't bother compressing messages smaller than 1KB
+                    config.getInt(Option.COMPRESSION_THRESHOLD, 1024)
+            );
+        }
+
+        // by default, time 1 in every 100 messages, and probe event loops every second
+        this.latencyMonitor = new LatencyMonitor(
+                config.getInt(Option.METRICS_LATENCY_SAMPLE_RATE, 100),
+                this.timer,
+                config.getLong(Option.METRICS_EVENT_LOOP_PROBE_INTERVAL, 1000)
+        );
+
         // setup channels
+        // track the top 100 channels and senders over a 1 minute window
+        TopTalkers topTalkers = new TopTalkers(
+                config.getInt(Option.METRICS_TOP_CAPACITY, 100),
+                config.getLong(Option.METRICS_TOP_WINDOW, 60),
+                TimeUnit.SECONDS
+        );
+
         this.channelRegistry = new ChannelRegistry(
+                this.timer,
+                subnetMask,
                 new RateLimiter(
                     // by default, allow messages at a rate of 30 times every 2 minutes (every 4s)
                     config.getInt(Option.MSG_RATE_LIMIT_PERIOD, 2),
-                    config.getInt(Option.MSG_RATE_LIMIT, 30)
+                    config.getInt(Option.MSG_RATE_LIMIT, 30),
+                    config.getInt(Option.MSG_SUBNET_RATE_LIMIT, 0),
+                    config.getInt(Option.MSG_GLOBAL_RATE_LIMIT, 0),
+                    subnetMask,
+                    floodProtection
+                ),
+                config.getInt(Option.CHANNEL_MAX_CLIENTS, 5),
+                new OutboundQueue.Limits(
+                        // by default, allow each client to fall behind by up to 16MB or 4096 messages,
+                        // then disconnect it with status 1013 (try again later)
+                        config.getLong(Option.OUTBOUND_MAX_BYTES, 16 * 1024 * 1024),
+                        config.getInt(Option.OUTBOUND_MAX_MESSAGES, 4096),
+                        OutboundQueue.OverflowPolicy.parse(config.getString(Option.OUTBOUND_OVERFLOW_POLICY, "close")),
+                        config.getInt(Option.OUTBOUND_OVERFLOW_CLOSE_STATUS, 1013),
+                        // by default, flush writes once at the end of each event loop iteration
+                        config.getLong(Option.OUTBOUND_FLUSH_DELAY, 0)
+                ),
+                new WriteBufferWaterMark(
+                        // by default, pause senders in backpressure channels once a client has 1MB
+                        // waiting to be written, and resume when it drops below 256KB
+                        config.getInt(Option.BACKPRESSURE_LOW_WATERMARK, 256 * 1024),
+                        config.getInt(Option.BACKPRESSURE_HIGH_WATERMARK, 1024 * 1024)
+                ),
+                this.recorder,
+                compressor,
+                // optionally relay fragmented messages as they arrive, up to 64MB in total,
+                // instead of waiting for the whole message
+                config.getBoolean(Option.STREAM_RELAY, false) ? config.getLong(Option.STREAM_MAX_MESSAGE_SIZE, 64 * 1024 * 1024) : 0,
+                this.eventLog,
+                // keep the number of distinct client labels in metrics bounded
+                new MetricLabels(config.getStringList(Option.METRICS_LABELS)),
+                this.latencyMonitor,
+                topTalkers,
+                // history channels keep up to 32 messages / 1MB each, and 256MB in total
+                new MessageHistory.Limits(
+                        config.getInt(Option.HISTORY_MAX_MESSAGES, 32),
+                        config.getLong(Option.HISTORY_MAX_BYTES, 1024 * 1024),
+                        config.getLong(Option.HISTORY_BUDGET_BYTES, 256L * 1024 * 1024)
                 ),
-                config.getInt(Option.CHANNEL_MAX_CLIENTS, 5)
+                // sessions in resume channels can be resumed for 30 seconds after disconnecting
+                config.getInt(Option.RESUME_GRACE_PERIOD, 30)
         );
 
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
-                .setDaemon(true)
-                .setNameFormat("bytesocks-channel-auditer")
-                .build());
-
-        // audit channels every second
-        executor.scheduleAtFixedRate(this.channelRegistry::auditChannels, 1, 1, TimeUnit.SECONDS);
+        RateLimiter connectRateLimiter = new RateLimiter(
+                // by default, allow connects at a rate of 30 times every 10 minutes (every 20s)
+                config.getInt(Option.CONNECT_RATE_LIMIT_PERIOD, 10),
+                config.getInt(Option.CONNECT_RATE_LIMIT, 30),
+                config.getInt(Option.CONNECT_SUBNET_RATE_LIMIT, 0),
+                config.getInt(Option.CONNECT_GLOBAL_RATE_LIMIT, 0),
+                subnetMask,
+                floodProtection
+        );
 
         boolean metrics = config.getBoolean(Option.METRICS, false);
         if (metrics) {
@@ -109,26 +233,39 @@ public final class Bytesocks implements AutoCloseable {
         ServerOptions serverOpts = new ServerOptions();
         serverOpts.setHost(config.getString(Option.HOST, "0.0.0.0"));
         serverOpts.setPort(config.getInt(Option.PORT, 8080));
-        serverOpts.setCompressionLevel(7);
+        serverOpts.setCompressionLevel(7); // http responses only, see MessageCompressor for websockets
 
         this.server = new NettyServer(serverOpts);
         this.server.start(Jooby.createApp(this.server, ExecutionMode.EVENT_LOOP, () -> new BytesocksServer(
                 metrics,
                 this.channelRegistry,
                 config.getInt(Option.CREATE_RATE_LIMIT, 3), // allow up to 3 active channels per IP
-                new RateLimiter(
-                        // by default, allow connects at a rate of 30 times every 10 minutes (every 20s)
-                        config.getInt(Option.CONNECT_RATE_LIMIT_PERIOD, 10),
-                        config.getInt(Option.CONNECT_RATE_LIMIT, 30)
-                ),
-                new TokenGenerator(config.getInt(Option.KEY_LENGTH, 7))
+                config.getInt(Option.CREATE_SUBNET_RATE_LIMIT, 0),
+                config.getInt(Option.CREATE_GLOBAL_RATE_LIMIT, 0),
+                connectRateLimiter,
+                new TokenGenerator(config.getInt(Option.KEY_LENGTH, 7)),
+                this.eventLog,
+                topTalkers,
+                config.getString(Option.ADMIN_TOKEN, "")
         )));
+        this.latencyMonitor.start();
     }
 
     @Override
     public void close() {
         this.channelRegistry.closeAllChannels();
         this.server.stop();
+        this.latencyMonitor.close();
+        this.timer.stop();
+        this.eventLog.close();
+
+        if (this.recorder != null) {
+            try {
+                this.recorder.close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing traffic recorder", e);
+            }
+        }
     }
 
 }
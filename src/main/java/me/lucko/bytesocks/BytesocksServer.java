@@ -38,6 +38,9 @@ import io.jooby.handler.CorsHandler;
 import me.lucko.bytesocks.http.CreateHandler;
 import me.lucko.bytesocks.http.MetricsHandler;
 import me.lucko.bytesocks.http.PreConnectHandler;
+import me.lucko.bytesocks.http.TopHandler;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.TopTalkers;
 import me.lucko.bytesocks.util.RateLimiter;
 import me.lucko.bytesocks.util.TokenGenerator;
 import me.lucko.bytesocks.ws.ChannelRegistry;
@@ -53,7 +56,7 @@ public class BytesocksServer extends Jooby {
     /** Logger instance */
     private static final Logger LOGGER = LogManager.getLogger(BytesocksServer.class);
 
-    public BytesocksServer(boolean metrics, ChannelRegistry channelRegistry, int createRateLimit, RateLimiter connectRateLimiter, TokenGenerator tokenGenerator) {
+    public BytesocksServer(boolean metrics, ChannelRegistry channelRegistry, int createRateLimit, int createSubnetRateLimit, int createGlobalRateLimit, RateLimiter connectRateLimiter, TokenGenerator tokenGenerator, EventLog eventLog, TopTalkers topTalkers, String adminToken) {
         setRouterOptions(new RouterOptions().setTrustProxy(true));
 
         // catch all errors & just return some generic error message
@@ -80,6 +83,14 @@ public class BytesocksServer extends Jooby {
         // metrics endpoint
         if (metrics) {
             get("/metrics", new MetricsHandler());
+            if (topTalkers.isEnabled()) {
+                // the endpoint exposes per-ip traffic, so it is only served to token holders
+                if (adminToken.isEmpty()) {
+                    LOGGER.warn("No admin token is set, so /admin/top is disabled");
+                } else {
+                    get("/admin/top", new TopHandler(topTalkers, adminToken));
+                }
+            }
         }
 
         use(new CorsHandler(new Cors()
@@ -93,10 +104,10 @@ public class BytesocksServer extends Jooby {
         });
 
         // define create channel handler
-        get("/create", new CreateHandler(channelRegistry, createRateLimit, tokenGenerator));
+        get("/create", new CreateHandler(channelRegistry, createRateLimit, createSubnetRateLimit, createGlobalRateLimit, tokenGenerator, eventLog));
 
         // define connect handlers
-        before(new PreConnectHandler(channelRegistry, connectRateLimiter));
+        before(new PreConnectHandler(channelRegistry, connectRateLimiter, eventLog));
         ws("/{id:[a-zA-Z0-9]+}", new ConnectHandler(channelRegistry));
     }
 
@@ -122,14 +133,4 @@ public class BytesocksServer extends Jooby {
         return "unknown";
     }
 
-    public static String describeForLogger(Context ctx) {
-        String ipAddress = getIpAddress(ctx);
-        String userAgent = ctx.header("User-Agent").value("null");
-        String origin = ctx.header("Origin").value("null");
-
-        return "    user agent = " + userAgent + "\n" +
-                "    ip = " + ipAddress + "\n" +
-                (origin.equals("null") ? "" : "    origin = " + origin + "\n");
-    }
-
 }
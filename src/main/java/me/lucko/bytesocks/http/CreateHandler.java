@@ -31,26 +31,31 @@ import io.jooby.Route;
 import io.jooby.StatusCode;
 import io.jooby.exception.StatusCodeException;
 import me.lucko.bytesocks.BytesocksServer;
+import me.lucko.bytesocks.log.EventLog;
 import me.lucko.bytesocks.util.TokenGenerator;
+import me.lucko.bytesocks.ws.ChannelFeature;
 import me.lucko.bytesocks.ws.ChannelRegistry;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import java.util.EnumSet;
+import java.util.Set;
 
 public final class CreateHandler implements Route.Handler {
 
-    /** Logger instance */
-    private static final Logger LOGGER = LogManager.getLogger(CreateHandler.class);
-
     private final ChannelRegistry channelRegistry;
     private final int rateLimit;
+    private final int subnetRateLimit;
+    private final int globalRateLimit;
     private final TokenGenerator tokenGenerator;
+    private final EventLog eventLog;
 
-    public CreateHandler(ChannelRegistry channelRegistry, int rateLimit, TokenGenerator tokenGenerator) {
+    public CreateHandler(ChannelRegistry channelRegistry, int rateLimit, int subnetRateLimit, int globalRateLimit, TokenGenerator tokenGenerator, EventLog eventLog) {
         this.channelRegistry = channelRegistry;
         this.rateLimit = rateLimit;
+        this.subnetRateLimit = subnetRateLimit;
+        this.globalRateLimit = globalRateLimit;
         this.tokenGenerator = tokenGenerator;
+        this.eventLog = eventLog;
     }
 
     @Override
@@ -58,24 +63,39 @@ public final class CreateHandler implements Route.Handler {
         String ipAddress = BytesocksServer.getIpAddress(ctx);
 
         // check rate limits
+        String limitType = null;
         if (this.channelRegistry.getChannelCount(ipAddress) >= this.rateLimit) {
-            LOGGER.info("[RATELIMIT]\n" +
-                    "    type = create" + "\n" +
-                    BytesocksServer.describeForLogger(ctx)
-            );
+            limitType = "create";
+        } else if (this.subnetRateLimit > 0 && this.channelRegistry.getSubnetChannelCount(ipAddress) >= this.subnetRateLimit) {
+            limitType = "create-subnet";
+        } else if (this.globalRateLimit > 0 && this.channelRegistry.getTotalChannelCount() >= this.globalRateLimit) {
+            limitType = "create-global";
+        }
+        if (limitType != null) {
+            this.eventLog.log(EventLog.Type.RATE_LIMIT, null, ctx, limitType);
             throw new StatusCodeException(StatusCode.TOO_MANY_REQUESTS, "Rate limit exceeded");
         }
 
+        // parse requested features
+        Set<ChannelFeature> features = EnumSet.noneOf(ChannelFeature.class);
+        String featuresParam = ctx.query("features").valueOrNull();
+        if (featuresParam != null && !featuresParam.isEmpty()) {
+            for (String featureId : featuresParam.split(",")) {
+                ChannelFeature feature = ChannelFeature.parse(featureId);
+                if (feature == null) {
+                    throw new StatusCodeException(StatusCode.BAD_REQUEST, "Unknown channel feature: " + featureId.trim());
+                }
+                features.add(feature);
+            }
+        }
+
         // generate a id
         String id = this.tokenGenerator.generate();
 
         // register a new channel
-        this.channelRegistry.registerNewChannel(id, ipAddress);
+        this.channelRegistry.registerNewChannel(id, ipAddress, features);
 
-        LOGGER.info("[CREATE]\n" +
-                "    channel id = " + id + "\n" +
-                BytesocksServer.describeForLogger(ctx)
-        );
+        this.eventLog.log(EventLog.Type.CREATE, id, ctx, null);
 
         // return the url location as plain content
         ctx.setResponseCode(StatusCode.CREATED);
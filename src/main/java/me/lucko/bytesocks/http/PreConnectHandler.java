@@ -30,26 +30,24 @@ import io.jooby.Route;
 import io.jooby.StatusCode;
 import io.jooby.exception.StatusCodeException;
 import me.lucko.bytesocks.BytesocksServer;
+import me.lucko.bytesocks.log.EventLog;
 import me.lucko.bytesocks.util.RateLimiter;
 import me.lucko.bytesocks.util.TokenGenerator;
 import me.lucko.bytesocks.ws.Channel;
 import me.lucko.bytesocks.ws.ChannelRegistry;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
 
 public class PreConnectHandler implements Route.Before {
 
-    /** Logger instance */
-    private static final Logger LOGGER = LogManager.getLogger(PreConnectHandler.class);
-
     private final ChannelRegistry channelRegistry;
     private final RateLimiter rateLimiter;
+    private final EventLog eventLog;
 
-    public PreConnectHandler(ChannelRegistry channelRegistry, RateLimiter rateLimiter) {
+    public PreConnectHandler(ChannelRegistry channelRegistry, RateLimiter rateLimiter, EventLog eventLog) {
         this.channelRegistry = channelRegistry;
         this.rateLimiter = rateLimiter;
+        this.eventLog = eventLog;
     }
 
     @Override
@@ -61,30 +59,37 @@ public class PreConnectHandler implements Route.Before {
         }
 
         String ipAddress = BytesocksServer.getIpAddress(ctx);
+        Channel channel = this.channelRegistry.getChannel(id);
+
+        // clients resuming a session replace their previous connection, so they skip the
+        // connect rate limit and the client limit - but only if the session can really be
+        // resumed, and only once per session
+        String resumeToken = ctx.query("resume").valueOrNull();
+        boolean resuming = false;
+        if (resumeToken != null) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(ctx.query("seq").value("-1"));
+            } catch (NumberFormatException e) {
+                throw new StatusCodeException(StatusCode.BAD_REQUEST, "Invalid sequence number");
+            }
+            resuming = channel != null && channel.claimResume(resumeToken, sequence);
+        }
 
         // check rate limits
-        if (this.rateLimiter.check(ipAddress)) {
-            LOGGER.info("[RATELIMIT]\n" +
-                    "    type = pre-connect" + "\n" +
-                    "    channel id = " + id + "\n" +
-                    BytesocksServer.describeForLogger(ctx)
-            );
+        if (!resuming && this.rateLimiter.check(ipAddress)) {
+            this.eventLog.log(EventLog.Type.RATE_LIMIT, id, ctx, "pre-connect");
             throw new StatusCodeException(StatusCode.TOO_MANY_REQUESTS, "Rate limit exceeded");
         }
 
         // check if the channel exists
-        Channel channel = this.channelRegistry.getChannel(id);
         if (channel == null) {
             throw new StatusCodeException(StatusCode.BAD_REQUEST, "Cannot connect to channel");
         }
 
         // check if more clients are allowed to join the channel
-        if (!channel.moreClientsAllowed()) {
-            LOGGER.info("[RATELIMIT]\n" +
-                    "    type = max-clients" + "\n" +
-                    "    channel id = " + id + "\n" +
-                    BytesocksServer.describeForLogger(ctx)
-            );
+        if (!resuming && !channel.moreClientsAllowed()) {
+            this.eventLog.log(EventLog.Type.RATE_LIMIT, id, ctx, "max-clients");
             throw new StatusCodeException(StatusCode.TOO_MANY_REQUESTS, "Rate limit exceeded");
         }
     }
@@ -0,0 +1,107 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.http;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.jooby.Context;
+import io.jooby.MediaType;
+import io.jooby.Route;
+import io.jooby.StatusCode;
+import io.jooby.exception.StatusCodeException;
+import me.lucko.bytesocks.metrics.TopTalkers;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+public final class TopHandler implements Route.Handler {
+
+    /** The max number of entries returned in each list */
+    private static final int MAX_LIMIT = 100;
+
+    private final TopTalkers topTalkers;
+    /** The token required in the Authorization header */
+    private final byte[] adminToken;
+
+    public TopHandler(TopTalkers topTalkers, String adminToken) {
+        if (adminToken == null || adminToken.isEmpty()) {
+            throw new IllegalArgumentException("An admin token is required");
+        }
+        this.topTalkers = topTalkers;
+        this.adminToken = adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object apply(@Nonnull Context ctx) {
+        String auth = ctx.header("Authorization").valueOrNull();
+        if (auth == null || !auth.startsWith("Bearer ") ||
+                !MessageDigest.isEqual(this.adminToken, auth.substring(7).getBytes(StandardCharsets.UTF_8))) {
+            throw new StatusCodeException(StatusCode.UNAUTHORIZED);
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(ctx.query("limit").value("10"));
+        } catch (NumberFormatException e) {
+            throw new StatusCodeException(StatusCode.BAD_REQUEST, "Invalid limit");
+        }
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+
+        TopTalkers.Top top = this.topTalkers.top(limit);
+
+        JsonObject channels = new JsonObject();
+        channels.add("messages", toJson(top.getChannelsByMessages()));
+        channels.add("bytes", toJson(top.getChannelsByBytes()));
+
+        JsonObject ips = new JsonObject();
+        ips.add("messages", toJson(top.getIpsByMessages()));
+        ips.add("bytes", toJson(top.getIpsByBytes()));
+
+        JsonObject response = new JsonObject();
+        response.addProperty("windowSeconds", top.getWindowSeconds());
+        response.add("channels", channels);
+        response.add("ips", ips);
+
+        ctx.setResponseHeader("Cache-Control", "no-cache");
+        ctx.setResponseType(MediaType.JSON);
+        return response.toString();
+    }
+
+    private static JsonArray toJson(List<TopTalkers.Entry> entries) {
+        JsonArray array = new JsonArray();
+        for (TopTalkers.Entry entry : entries) {
+            JsonObject object = new JsonObject();
+            object.addProperty("key", entry.getKey());
+            object.addProperty("count", entry.getCount());
+            object.addProperty("error", entry.getError());
+            array.add(object);
+        }
+        return array;
+    }
+
+}
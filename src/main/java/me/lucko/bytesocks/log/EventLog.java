@@ -0,0 +1,336 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.LiteTimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import io.jooby.Context;
+import io.prometheus.client.Counter;
+import me.lucko.bytesocks.BytesocksServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A structured log of connection events, written as json lines.
+ *
+ * <p>Events are logged from the event loops, so logging one just copies a few
+ * references into a pre-allocated slot in a ring buffer. A background thread
+ * encodes them and passes them on to the {@code bytesocks.events} logger. If the
+ * ring is full, events are dropped rather than blocking the caller.</p>
+ *
+ * <p>Each type of event can be sampled, so only 1 in every N is logged.</p>
+ */
+public final class EventLog implements AutoCloseable {
+
+    /** Logger instance */
+    private static final Logger LOGGER = LogManager.getLogger(EventLog.class);
+    /** The logger events are written to */
+    private static final Logger EVENTS_LOGGER = LogManager.getLogger("bytesocks.events");
+
+    public static final Counter DROPPED_COUNTER = Counter.build()
+            .name("bytesocks_eventlog_dropped_total")
+            .help("The number of events not logged because the event log buffer was full")
+            .register();
+
+    /** An event log that doesn't log anything */
+    public static final EventLog DISABLED = new EventLog();
+
+    /** How long to wait for buffered events to be written when closing */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    /** The disruptor, or null if disabled */
+    private final Disruptor<Record> disruptor;
+    /** The ring buffer, or null if disabled */
+    private final RingBuffer<Record> ringBuffer;
+    /** The sampling rate for each type of event, indexed by ordinal: 1 in N are logged, 0 for none */
+    private final int[] sampling = new int[Type.values().length];
+
+    private EventLog() {
+        this.disruptor = null;
+        this.ringBuffer = null;
+    }
+
+    /**
+     * Creates a new event log.
+     *
+     * @param bufferSize the size of the ring buffer, must be a power of 2
+     * @param sampling the sampling rate for each type of event, by {@link Type#getId() id}
+     */
+    public EventLog(int bufferSize, Map<String, Long> sampling) {
+        for (Type type : Type.values()) {
+            Long rate = sampling.get(type.id);
+            this.sampling[type.ordinal()] = rate == null ? 1 : (int) Math.max(0, Math.min(rate, Integer.MAX_VALUE));
+        }
+        for (String id : sampling.keySet()) {
+            if (Type.byId(id) == null) {
+                throw new IllegalArgumentException("Unknown event type: " + id);
+            }
+        }
+
+        this.disruptor = new Disruptor<>(
+                Record::new,
+                bufferSize,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("bytesocks-event-log")
+                        .build(),
+                ProducerType.MULTI,
+                new LiteTimeoutBlockingWaitStrategy(10, TimeUnit.MILLISECONDS)
+        );
+        this.disruptor.handleEventsWith(new Encoder());
+        this.ringBuffer = this.disruptor.start();
+    }
+
+    /**
+     * Gets if an event of the given type should be logged, applying sampling.
+     *
+     * @param type the type of event
+     * @return if the event should be logged
+     */
+    public boolean isLogged(Type type) {
+        if (this.ringBuffer == null) {
+            return false;
+        }
+
+        int rate = this.sampling[type.ordinal()];
+        return rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    /**
+     * Logs an event for an http request.
+     *
+     * <p>The request headers are only read if the event is logged.</p>
+     *
+     * @param type the type of event
+     * @param channelId the channel id, or null
+     * @param ctx the request context
+     * @param detail extra detail, or null
+     */
+    public void log(Type type, String channelId, Context ctx, String detail) {
+        if (!isLogged(type)) {
+            return;
+        }
+        publish(type, channelId, BytesocksServer.getIpAddress(ctx), ctx.header("User-Agent").valueOrNull(), ctx.header("Origin").valueOrNull(), -1, -1, detail, null);
+    }
+
+    /**
+     * Logs an event.
+     *
+     * @param type the type of event
+     * @param channelId the channel id, or null
+     * @param ipAddress the ip address, or null
+     * @param userAgent the user agent, or null
+     * @param origin the origin, or null
+     * @param count the number of clients connected to the channel, or -1
+     * @param status the websocket close status, or -1
+     * @param detail extra detail, or null
+     * @param error the error, or null
+     */
+    public void log(Type type, String channelId, String ipAddress, String userAgent, String origin, int count, int status, String detail, Throwable error) {
+        if (!isLogged(type)) {
+            return;
+        }
+        publish(type, channelId, ipAddress, userAgent, origin, count, status, detail, error);
+    }
+
+    private void publish(Type type, String channelId, String ipAddress, String userAgent, String origin, int count, int status, String detail, Throwable error) {
+        long sequence;
+        try {
+            sequence = this.ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            DROPPED_COUNTER.inc();
+            return;
+        }
+
+        try {
+            Record record = this.ringBuffer.get(sequence);
+            record.time = System.currentTimeMillis();
+            record.type = type;
+            record.channelId = channelId;
+            record.ipAddress = ipAddress;
+            record.userAgent = userAgent;
+            record.origin = origin;
+            record.count = count;
+            record.status = status;
+            record.detail = detail;
+            record.error = error;
+        } finally {
+            this.ringBuffer.publish(sequence);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.disruptor == null) {
+            return;
+        }
+
+        try {
+            this.disruptor.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.warn("Timed out waiting for the event log to be written");
+            this.disruptor.halt();
+        }
+    }
+
+    /**
+     * A type of event.
+     */
+    public enum Type {
+        CREATE("create"),
+        CONNECT("connect"),
+        CONNECTED("connected"),
+        DISCONNECTED("disconnected"),
+        CLOSED("closed"),
+        AUDIT("audit"),
+        RATE_LIMIT("ratelimit"),
+        ERROR("error");
+
+        private final String id;
+
+        Type(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return this.id;
+        }
+
+        public static Type byId(String id) {
+            for (Type type : values()) {
+                if (type.id.equals(id.toLowerCase(Locale.ROOT))) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** A slot in the ring buffer */
+    private static final class Record {
+        long time;
+        Type type;
+        String channelId;
+        String ipAddress;
+        String userAgent;
+        String origin;
+        int count;
+        int status;
+        String detail;
+        Throwable error;
+
+        void clear() {
+            this.type = null;
+            this.channelId = null;
+            this.ipAddress = null;
+            this.userAgent = null;
+            this.origin = null;
+            this.detail = null;
+            this.error = null;
+        }
+    }
+
+    /** Encodes records as json, on the background thread */
+    private static final class Encoder implements EventHandler<Record> {
+        private final StringBuilder sb = new StringBuilder(512);
+
+        @Override
+        public void onEvent(Record record, long sequence, boolean endOfBatch) {
+            StringBuilder sb = this.sb;
+            sb.setLength(0);
+            sb.append("{\"time\":").append(record.time);
+            sb.append(",\"event\":\"").append(record.type.id).append('"');
+            appendString(sb, "channel", record.channelId);
+            appendString(sb, "ip", record.ipAddress);
+            appendString(sb, "useragent", record.userAgent);
+            appendString(sb, "origin", record.origin);
+            if (record.count >= 0) {
+                sb.append(",\"count\":").append(record.count);
+            }
+            if (record.status >= 0) {
+                sb.append(",\"status\":").append(record.status);
+            }
+            appendString(sb, "detail", record.detail);
+            if (record.error != null) {
+                appendString(sb, "error", record.error.toString());
+            }
+            sb.append('}');
+
+            EVENTS_LOGGER.info(sb.toString());
+            if (record.error != null) {
+                LOGGER.error("Error in channel " + record.channelId, record.error);
+            }
+            record.clear();
+        }
+
+        private static void appendString(StringBuilder sb, String key, String value) {
+            if (value == null) {
+                return;
+            }
+
+            sb.append(",\"").append(key).append("\":\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.metrics;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.EventExecutor;
+import io.prometheus.client.Histogram;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long messages are held by the server, and how busy the event loops are.
+ *
+ * <p>Relayed messages are sampled (1 in every N), and a sampled message is timed from
+ * when its frame was decoded until it has been written to each recipient, along with
+ * how long it waited in the recipient's outbound queue. The event loops that clients
+ * are connected to are probed periodically by timing how long a trivial task takes
+ * to start running.</p>
+ *
+ * <p>Probing starts when {@link #start()} is called, and stops when the monitor is
+ * closed.</p>
+ */
+public final class LatencyMonitor implements TimerTask, AutoCloseable {
+
+    /** Buckets from 50us to 10s */
+    private static final double[] BUCKETS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    public static final Histogram RELAY_LATENCY_HISTOGRAM = Histogram.build()
+            .name("bytesocks_relay_latency_seconds")
+            .help("The time from a sampled message being received to it being written to a recipient")
+            .buckets(BUCKETS)
+            .register();
+
+    public static final Histogram QUEUE_WAIT_HISTOGRAM = Histogram.build()
+            .name("bytesocks_outbound_queue_wait_seconds")
+            .help("The time a sampled message spent in a recipient's outbound queue before being written")
+            .buckets(BUCKETS)
+            .register();
+
+    public static final Histogram EVENT_LOOP_DELAY_HISTOGRAM = Histogram.build()
+            .name("bytesocks_eventloop_delay_seconds")
+            .help("The time a task submitted to an event loop waited before it started running")
+            .buckets(BUCKETS)
+            .register();
+
+    /** A monitor that doesn't sample or probe anything */
+    public static final LatencyMonitor DISABLED = new LatencyMonitor(0, null, 0);
+
+    /** 1 in every N messages are sampled, 0 for none */
+    private final int sampleRate;
+    /** The timer used to schedule probes, or null if event loops aren't probed */
+    private final Timer timer;
+    /** How often to probe each event loop */
+    private final long probeIntervalMillis;
+    /** The event loops to probe */
+    private final Set<EventExecutor> eventLoops = ConcurrentHashMap.newKeySet();
+    /** The scheduled probe, or null if probing hasn't started */
+    private Timeout probe;
+    /** If the monitor has been closed */
+    private boolean closed = false;
+
+    public LatencyMonitor(int sampleRate, Timer timer, long probeIntervalMillis) {
+        this.sampleRate = sampleRate;
+        this.timer = timer;
+        this.probeIntervalMillis = probeIntervalMillis;
+    }
+
+    /**
+     * Starts probing the watched event loops, if probing is enabled.
+     */
+    public synchronized void start() {
+        if (this.timer != null && this.probeIntervalMillis > 0 && this.probe == null && !this.closed) {
+            this.probe = this.timer.newTimeout(this, this.probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Decides if a message should be timed.
+     *
+     * @return the current {@link System#nanoTime()} if the message is sampled, otherwise 0
+     */
+    public long sample() {
+        int rate = this.sampleRate;
+        if (rate == 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return now == 0 ? 1 : now;
+    }
+
+    /**
+     * Adds an event loop to be probed.
+     *
+     * @param eventLoop the event loop, or null
+     */
+    public void watch(EventExecutor eventLoop) {
+        if (eventLoop != null && this.timer != null) {
+            this.eventLoops.add(eventLoop);
+        }
+    }
+
+    @Override
+    public void run(Timeout timeout) {
+        for (EventExecutor eventLoop : this.eventLoops) {
+            if (eventLoop.isShuttingDown()) {
+                this.eventLoops.remove(eventLoop);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try {
+                eventLoop.execute(() -> EVENT_LOOP_DELAY_HISTOGRAM.observe((System.nanoTime() - start) / 1e9));
+            } catch (RejectedExecutionException e) {
+                this.eventLoops.remove(eventLoop);
+            }
+        }
+
+        synchronized (this) {
+            if (!this.closed) {
+                this.probe = this.timer.newTimeout(this, this.probeIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stops probing event loops.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        if (this.probe != null) {
+            this.probe.cancel();
+        }
+    }
+
+    /**
+     * Records the time a sampled message waited in an outbound queue.
+     *
+     * @param offeredAt when the message was added to the queue
+     * @param now the current time
+     */
+    public static void queueWait(long offeredAt, long now) {
+        QUEUE_WAIT_HISTOGRAM.observe((now - offeredAt) / 1e9);
+    }
+
+    /**
+     * Records the time from a sampled message being received to it being written.
+     *
+     * @param receivedAt the time returned by {@link #sample()}
+     */
+    public static void written(long receivedAt) {
+        RELAY_LATENCY_HISTOGRAM.observe((System.nanoTime() - receivedAt) / 1e9);
+    }
+
+}
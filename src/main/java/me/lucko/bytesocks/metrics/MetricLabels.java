@@ -0,0 +1,68 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.metrics;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Maps client labels (origins and user agents) to the values used for metric labels,
+ * keeping the number of distinct values bounded.
+ *
+ * <p>Labels starting with an entry in the allowlist are reported as that entry (so
+ * e.g. different versions of the same user agent are grouped together), and everything
+ * else is reported as {@link #OTHER}. Clients can't add labels of their own, so with
+ * no allowlist every client is reported as {@link #OTHER}.</p>
+ */
+public final class MetricLabels {
+
+    /** The label used for clients that aren't tracked individually */
+    public static final String OTHER = "other";
+
+    /** The allowed label prefixes */
+    private final List<String> allowlist;
+
+    public MetricLabels(List<String> allowlist) {
+        this.allowlist = ImmutableList.copyOf(allowlist);
+    }
+
+    /**
+     * Gets the metric label for a client.
+     *
+     * @param label the client's label
+     * @return the metric label
+     */
+    public String resolve(String label) {
+        for (String prefix : this.allowlist) {
+            if (label.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return OTHER;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of sizes in bytes, exported as a prometheus histogram with one label.
+ *
+ * <p>Buckets are powers of two, so finding the bucket for a value is a couple of bit
+ * operations, and every bucket is a {@link LongAdder}, so recording never takes a lock
+ * and writers on different threads don't contend.</p>
+ *
+ * <p>Children should be resolved once and kept, rather than looked up per observation.</p>
+ */
+public final class SizeHistogram extends Collector {
+
+    /** The upper bound of the first bucket is 2^MIN_EXPONENT */
+    private static final int MIN_EXPONENT = 6; // 64B
+    /** The upper bound of the last finite bucket is 2^MAX_EXPONENT */
+    private static final int MAX_EXPONENT = 26; // 64MB
+    /** The number of buckets, including +Inf */
+    private static final int BUCKETS = MAX_EXPONENT - MIN_EXPONENT + 2;
+    /** The upper bounds of the buckets, formatted for the le label */
+    private static final String[] BUCKET_BOUNDS = new String[BUCKETS];
+
+    static {
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            BUCKET_BOUNDS[i] = Collector.doubleToGoString(1L << (MIN_EXPONENT + i));
+        }
+        BUCKET_BOUNDS[BUCKETS - 1] = "+Inf";
+    }
+
+    private final String name;
+    private final String help;
+    private final List<String> bucketLabelNames;
+    private final List<String> labelNames;
+    private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+    public SizeHistogram(String name, String help, String labelName) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = Collections.singletonList(labelName);
+        this.bucketLabelNames = List.of(labelName, "le");
+    }
+
+    /**
+     * Gets the child for the given label value, creating it if necessary.
+     *
+     * @param label the label value
+     * @return the child
+     */
+    public Child labels(String label) {
+        return this.children.computeIfAbsent(label, l -> new Child());
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>(this.children.size() * (BUCKETS + 2));
+        for (Map.Entry<String, Child> entry : this.children.entrySet()) {
+            String label = entry.getKey();
+            Child child = entry.getValue();
+
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += child.buckets[i].sum();
+                samples.add(new MetricFamilySamples.Sample(this.name + "_bucket", this.bucketLabelNames, List.of(label, BUCKET_BOUNDS[i]), cumulative));
+            }
+            List<String> labelValues = Collections.singletonList(label);
+            samples.add(new MetricFamilySamples.Sample(this.name + "_count", this.labelNames, labelValues, cumulative));
+            samples.add(new MetricFamilySamples.Sample(this.name + "_sum", this.labelNames, labelValues, child.sum.sum()));
+        }
+        return Collections.singletonList(new MetricFamilySamples(this.name, Type.HISTOGRAM, this.help, samples));
+    }
+
+    private static int bucket(long value) {
+        if (value <= 1) {
+            return 0;
+        }
+        // ceil(log2(value))
+        int exponent = 64 - Long.numberOfLeadingZeros(value - 1);
+        return Math.min(Math.max(exponent - MIN_EXPONENT, 0), BUCKETS - 1);
+    }
+
+    /**
+     * The histogram for a single label value.
+     */
+    public static final class Child {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        private Child() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a size.
+         *
+         * @param value the size in bytes
+         */
+        public void observe(long value) {
+            this.buckets[bucket(value)].increment();
+            this.sum.add(value);
+        }
+    }
+
+}
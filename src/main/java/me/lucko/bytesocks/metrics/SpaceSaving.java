@@ -0,0 +1,155 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A space-saving sketch, which tracks the heaviest keys in a stream using a fixed
+ * number of counters.
+ *
+ * <p>When a new key arrives and every counter is in use, the key with the smallest
+ * count is replaced, and the new key inherits its count (recorded as the error).
+ * Any key with a true weight above total / capacity is guaranteed to be tracked, and
+ * counts overestimate by at most the recorded error.</p>
+ *
+ * <p>Counters are kept in a min-heap, so updates are O(log capacity). Not thread safe.</p>
+ */
+final class SpaceSaving {
+
+    private final Counter[] heap;
+    private final Map<String, Counter> counters;
+    private int size = 0;
+
+    SpaceSaving(int capacity) {
+        this.heap = new Counter[capacity];
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    /**
+     * Adds weight to a key.
+     *
+     * @param key the key
+     * @param weight the weight
+     */
+    void add(String key, long weight) {
+        Counter counter = this.counters.get(key);
+        if (counter != null) {
+            counter.count += weight;
+            siftDown(counter.index);
+            return;
+        }
+
+        if (this.size < this.heap.length) {
+            counter = new Counter();
+            counter.key = key;
+            counter.count = weight;
+            counter.index = this.size;
+            this.heap[this.size++] = counter;
+            this.counters.put(key, counter);
+            siftUp(counter.index);
+            return;
+        }
+
+        // replace the smallest
+        counter = this.heap[0];
+        this.counters.remove(counter.key);
+        counter.key = key;
+        counter.error = counter.count;
+        counter.count += weight;
+        this.counters.put(key, counter);
+        siftDown(0);
+    }
+
+    void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.heap[i] = null;
+        }
+        this.size = 0;
+        this.counters.clear();
+    }
+
+    /**
+     * Adds the counts in this sketch to the given totals.
+     *
+     * @param totals the totals, by key: {count, error}
+     */
+    void addTo(Map<String, long[]> totals) {
+        for (int i = 0; i < this.size; i++) {
+            Counter counter = this.heap[i];
+            long[] total = totals.computeIfAbsent(counter.key, k -> new long[2]);
+            total[0] += counter.count;
+            total[1] += counter.error;
+        }
+    }
+
+    private void siftUp(int i) {
+        Counter counter = this.heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            Counter p = this.heap[parent];
+            if (p.count <= counter.count) {
+                break;
+            }
+            place(p, i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        Counter counter = this.heap[i];
+        int half = this.size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < this.size && this.heap[right].count < this.heap[child].count) {
+                child = right;
+            }
+            Counter c = this.heap[child];
+            if (counter.count <= c.count) {
+                break;
+            }
+            place(c, i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(Counter counter, int i) {
+        this.heap[i] = counter;
+        counter.index = i;
+    }
+
+    private static final class Counter {
+        String key;
+        long count;
+        long error;
+        int index;
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the busiest channels and sending ip addresses, by message count and by bytes,
+ * over a sliding window.
+ *
+ * <p>Each relaying thread records into its own {@link SpaceSaving} sketches, so the
+ * relay path never contends with other threads. Sketches are merged when queried.</p>
+ */
+public final class TopTalkers {
+
+    /** A tracker that records nothing */
+    public static final TopTalkers DISABLED = new TopTalkers(0, 1, TimeUnit.SECONDS);
+
+    private final int capacity;
+    private final long windowNanos;
+    private final long origin = System.nanoTime();
+
+    /** All slots ever created, one per recording thread */
+    private final List<Slot> slots = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(this::newSlot);
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param capacity the number of keys tracked for each metric, or 0 to disable
+     * @param window the window length
+     * @param unit the window length unit
+     */
+    public TopTalkers(int capacity, long window, TimeUnit unit) {
+        this.capacity = capacity;
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    public boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    /**
+     * Records a relayed message.
+     *
+     * @param channelId the channel id
+     * @param ipAddress the ip address of the sender
+     * @param bytes the size of the message
+     */
+    public void record(String channelId, String ipAddress, long bytes) {
+        if (this.capacity <= 0) {
+            return;
+        }
+
+        Slot slot = this.slot.get();
+        long epoch = epoch();
+        synchronized (slot) {
+            slot.rotate(epoch);
+            Windows current = slot.current;
+            current.channelMessages.add(channelId, 1);
+            current.channelBytes.add(channelId, bytes);
+            current.ipMessages.add(ipAddress, 1);
+            current.ipBytes.add(ipAddress, bytes);
+        }
+    }
+
+    /**
+     * Gets the busiest keys over the last one to two windows.
+     *
+     * @param limit the maximum number of entries in each list
+     * @return the top entries
+     */
+    public Top top(int limit) {
+        Map<String, long[]> channelMessages = new HashMap<>();
+        Map<String, long[]> channelBytes = new HashMap<>();
+        Map<String, long[]> ipMessages = new HashMap<>();
+        Map<String, long[]> ipBytes = new HashMap<>();
+
+        long epoch = epoch();
+        for (Slot slot : this.slots) {
+            synchronized (slot) {
+                slot.rotate(epoch);
+                for (Windows windows : new Windows[]{slot.current, slot.previous}) {
+                    windows.channelMessages.addTo(channelMessages);
+                    windows.channelBytes.addTo(channelBytes);
+                    windows.ipMessages.addTo(ipMessages);
+                    windows.ipBytes.addTo(ipBytes);
+                }
+            }
+        }
+
+        return new Top(
+                TimeUnit.NANOSECONDS.toSeconds(this.windowNanos),
+                sort(channelMessages, limit),
+                sort(channelBytes, limit),
+                sort(ipMessages, limit),
+                sort(ipBytes, limit)
+        );
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - this.origin) / this.windowNanos;
+    }
+
+    private Slot newSlot() {
+        Slot slot = new Slot(this.capacity, epoch());
+        this.slots.add(slot);
+        return slot;
+    }
+
+    private static List<Entry> sort(Map<String, long[]> totals, int limit) {
+        if (totals.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> entries = new ArrayList<>(totals.size());
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            entries.add(new Entry(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+        entries.sort(Comparator.comparingLong(Entry::getCount).reversed());
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    /** The sketches for one thread */
+    private static final class Slot {
+        private Windows current;
+        private Windows previous;
+        private long epoch;
+
+        Slot(int capacity, long epoch) {
+            this.current = new Windows(capacity);
+            this.previous = new Windows(capacity);
+            this.epoch = epoch;
+        }
+
+        void rotate(long epoch) {
+            if (epoch == this.epoch) {
+                return;
+            }
+
+            Windows expired = this.previous;
+            expired.clear();
+            if (epoch - this.epoch > 1) {
+                // the current window is stale too
+                this.current.clear();
+            }
+
+            this.previous = this.current;
+            this.current = expired;
+            this.epoch = epoch;
+        }
+    }
+
+    /** The sketches for one window */
+    private static final class Windows {
+        final SpaceSaving channelMessages;
+        final SpaceSaving channelBytes;
+        final SpaceSaving ipMessages;
+        final SpaceSaving ipBytes;
+
+        Windows(int capacity) {
+            this.channelMessages = new SpaceSaving(capacity);
+            this.channelBytes = new SpaceSaving(capacity);
+            this.ipMessages = new SpaceSaving(capacity);
+            this.ipBytes = new SpaceSaving(capacity);
+        }
+
+        void clear() {
+            this.channelMessages.clear();
+            this.channelBytes.clear();
+            this.ipMessages.clear();
+            this.ipBytes.clear();
+        }
+    }
+
+    /** The result of a query */
+    public static final class Top {
+        private final long windowSeconds;
+        private final List<Entry> channelsByMessages;
+        private final List<Entry> channelsByBytes;
+        private final List<Entry> ipsByMessages;
+        private final List<Entry> ipsByBytes;
+
+        Top(long windowSeconds, List<Entry> channelsByMessages, List<Entry> channelsByBytes, List<Entry> ipsByMessages, List<Entry> ipsByBytes) {
+            this.windowSeconds = windowSeconds;
+            this.channelsByMessages = channelsByMessages;
+            this.channelsByBytes = channelsByBytes;
+            this.ipsByMessages = ipsByMessages;
+            this.ipsByBytes = ipsByBytes;
+        }
+
+        public long getWindowSeconds() {
+            return this.windowSeconds;
+        }
+
+        public List<Entry> getChannelsByMessages() {
+            return this.channelsByMessages;
+        }
+
+        public List<Entry> getChannelsByBytes() {
+            return this.channelsByBytes;
+        }
+
+        public List<Entry> getIpsByMessages() {
+            return this.ipsByMessages;
+        }
+
+        public List<Entry> getIpsByBytes() {
+            return this.ipsByBytes;
+        }
+    }
+
+    /** A key and its estimated count, which may overcount by up to the error */
+    public static final class Entry {
+        private final String key;
+        private final long count;
+        private final long error;
+
+        Entry(String key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long getError() {
+            return this.error;
+        }
+    }
+
+}
@@ -26,6 +26,7 @@
 package me.lucko.bytesocks.util;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
@@ -36,9 +37,11 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.stream.StreamSupport;
 
 /**
  * Json config wrapper class
@@ -98,6 +101,15 @@ public class Configuration {
         return get(option, def, Boolean::parseBoolean, JsonElement::getAsBoolean);
     }
 
+    public List<String> getStringList(Option option) {
+        return get(option, ImmutableList.of(),
+                str -> ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(str)),
+                ele -> StreamSupport.stream(ele.getAsJsonArray().spliterator(), false)
+                        .map(JsonElement::getAsString)
+                        .collect(ImmutableList.toImmutableList())
+        );
+    }
+
     public Map<String, Long> getLongMap(Option option) {
         return get(option, ImmutableMap.of(),
                 str -> Splitter.on(',').withKeyValueSeparator('=').split(str).entrySet().stream()
@@ -119,17 +131,64 @@ public class Configuration {
         PORT("port", "bytesocks.http.port"),
 
         METRICS("metricsEnabled", "bytesocks.metrics.enabled"),
+        METRICS_LABELS("metricsLabels", "bytesocks.metrics.labels"), // origin/user agent prefixes, empty to report every client as "other"
+        METRICS_LATENCY_SAMPLE_RATE("metricsLatencySampleRate", "bytesocks.metrics.latency.samplerate"), // 1 in N messages, 0 to disable
+        METRICS_EVENT_LOOP_PROBE_INTERVAL("metricsEventLoopProbeInterval", "bytesocks.metrics.eventloop.probeinterval"), // milliseconds, 0 to disable
+        METRICS_TOP_CAPACITY("metricsTopCapacity", "bytesocks.metrics.top.capacity"), // keys tracked per thread, 0 to disable
+        METRICS_TOP_WINDOW("metricsTopWindow", "bytesocks.metrics.top.window"), // seconds
+        ADMIN_TOKEN("adminToken", "bytesocks.admin.token"), // bearer token for /admin endpoints, which are disabled if empty
+
+        EVENT_LOG_BUFFER_SIZE("eventLogBufferSize", "bytesocks.eventlog.buffersize"), // power of 2
+        EVENT_LOG_SAMPLING("eventLogSampling", "bytesocks.eventlog.sampling"), // event=N to log 1 in N, or 0 for none
 
         KEY_LENGTH("keyLength", "bytesocks.misc.keylength"),
         CHANNEL_MAX_CLIENTS("channelMaxClients", "bytesocks.misc.maxclients"),
 
+        SUBNET_IPV4_PREFIX_LENGTH("subnetIpv4PrefixLength", "bytesocks.ratelimit.subnet.ipv4prefix"), // bits
+        SUBNET_IPV6_PREFIX_LENGTH("subnetIpv6PrefixLength", "bytesocks.ratelimit.subnet.ipv6prefix"), // bits
+
         CREATE_RATE_LIMIT("createRateLimit", "bytesocks.ratelimit.create.amount"),
+        CREATE_SUBNET_RATE_LIMIT("createSubnetRateLimit", "bytesocks.ratelimit.create.subnetamount"), // 0 to disable
+        CREATE_GLOBAL_RATE_LIMIT("createGlobalRateLimit", "bytesocks.ratelimit.create.globalamount"), // 0 to disable
 
         CONNECT_RATE_LIMIT_PERIOD("connectRateLimitPeriodMins", "bytesocks.ratelimit.connect.period"), // minutes
         CONNECT_RATE_LIMIT("connectRateLimit", "bytesocks.ratelimit.connect.amount"),
+        CONNECT_SUBNET_RATE_LIMIT("connectSubnetRateLimit", "bytesocks.ratelimit.connect.subnetamount"), // 0 to disable
+        CONNECT_GLOBAL_RATE_LIMIT("connectGlobalRateLimit", "bytesocks.ratelimit.connect.globalamount"), // 0 to disable
 
         MSG_RATE_LIMIT_PERIOD("msgRateLimitPeriodMins", "bytesocks.ratelimit.msg.period"), // minutes
-        MSG_RATE_LIMIT("msgRateLimit", "bytesocks.ratelimit.msg.amount");
+        MSG_RATE_LIMIT("msgRateLimit", "bytesocks.ratelimit.msg.amount"),
+        MSG_SUBNET_RATE_LIMIT("msgSubnetRateLimit", "bytesocks.ratelimit.msg.subnetamount"), // 0 to disable
+        MSG_GLOBAL_RATE_LIMIT("msgGlobalRateLimit", "bytesocks.ratelimit.msg.globalamount"), // 0 to disable
+
+        RATE_LIMIT_FLOOD_PROTECTION("rateLimitFloodProtection", "bytesocks.ratelimit.flood.enabled"),
+        RATE_LIMIT_FLOOD_SKETCH_WIDTH("rateLimitFloodSketchWidth", "bytesocks.ratelimit.flood.sketchwidth"),
+        RATE_LIMIT_FLOOD_THRESHOLD("rateLimitFloodThresholdPercent", "bytesocks.ratelimit.flood.threshold"), // percent of the limit
+        RATE_LIMIT_FLOOD_MAX_TRACKED("rateLimitFloodMaxTracked", "bytesocks.ratelimit.flood.maxtracked"),
+
+        OUTBOUND_MAX_BYTES("outboundMaxBytes", "bytesocks.outbound.maxbytes"),
+        OUTBOUND_MAX_MESSAGES("outboundMaxMessages", "bytesocks.outbound.maxmessages"),
+        OUTBOUND_OVERFLOW_POLICY("outboundOverflowPolicy", "bytesocks.outbound.overflow.policy"), // drop-oldest, drop-newest or close
+        OUTBOUND_OVERFLOW_CLOSE_STATUS("outboundOverflowCloseStatus", "bytesocks.outbound.overflow.closestatus"),
+        OUTBOUND_FLUSH_DELAY("outboundFlushDelayMicros", "bytesocks.outbound.flushdelay"), // microseconds, 0 for end of event loop iteration, -1 to disable
+
+        STREAM_RELAY("streamRelay", "bytesocks.stream.enabled"),
+        STREAM_MAX_MESSAGE_SIZE("streamMaxMessageSize", "bytesocks.stream.maxmessagesize"), // bytes
+
+        COMPRESSION("compressionEnabled", "bytesocks.compression.enabled"),
+        COMPRESSION_LEVEL("compressionLevel", "bytesocks.compression.level"), // 1-9
+        COMPRESSION_THRESHOLD("compressionThreshold", "bytesocks.compression.threshold"), // bytes
+
+        HISTORY_MAX_MESSAGES("historyMaxMessages", "bytesocks.history.maxmessages"), // per channel
+        HISTORY_MAX_BYTES("historyMaxBytes", "bytesocks.history.maxbytes"), // per channel
+        HISTORY_BUDGET_BYTES("historyBudgetBytes", "bytesocks.history.budgetbytes"), // all channels, 0 to disable
+        RESUME_GRACE_PERIOD("resumeGracePeriod", "bytesocks.resume.graceperiod"), // seconds
+
+        BACKPRESSURE_LOW_WATERMARK("backpressureLowWatermark", "bytesocks.backpressure.lowwatermark"), // bytes
+        BACKPRESSURE_HIGH_WATERMARK("backpressureHighWatermark", "bytesocks.backpressure.highwatermark"), // bytes
+
+        RECORDER_DIRECTORY("recorderDirectory", "bytesocks.recorder.directory"), // empty to disable
+        RECORDER_MAX_BYTES("recorderMaxBytes", "bytesocks.recorder.maxbytes");
 
         final String keyJson;
         final String keySystemProperty;
@@ -0,0 +1,131 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A count-min sketch that estimates how many times each key has been seen recently,
+ * in a fixed amount of memory regardless of how many distinct keys there are.
+ *
+ * <p>Estimates never undercount (except for lost updates while a window is being
+ * rotated), but may overcount when keys collide. Counts cover the current and the
+ * previous window, so a key's estimate covers between one and two windows.</p>
+ */
+final class CountMinSketch {
+
+    /** The number of rows (hash functions) */
+    private static final int DEPTH = 4;
+    /** Seeds for each row's hash function */
+    private static final long[] SEEDS = {
+            0x9E37_79B9_7F4A_7C15L, 0xC2B2_AE3D_27D4_EB4FL, 0x1656_67B1_9E37_79F9L, 0x85EB_CA77_C2B2_AE63L
+    };
+
+    private final int mask;
+    private final long windowNanos;
+
+    private volatile AtomicIntegerArray current;
+    private volatile AtomicIntegerArray previous;
+    private volatile long windowStart;
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param width the number of counters in each row, rounded up to a power of two
+     * @param windowNanos the length of each window, in nanoseconds
+     */
+    CountMinSketch(int width, long windowNanos) {
+        Preconditions.checkArgument(width > 0, "width must be positive");
+        int size = Integer.highestOneBit(width - 1) << 1;
+        if (size <= 0) {
+            size = 1;
+        }
+        this.mask = size - 1;
+        this.windowNanos = windowNanos;
+        this.current = new AtomicIntegerArray(size * DEPTH);
+        this.previous = new AtomicIntegerArray(size * DEPTH);
+        this.windowStart = System.nanoTime();
+    }
+
+    /**
+     * Records an occurrence of the given key.
+     *
+     * @param high the high 64 bits of the key
+     * @param low the low 64 bits of the key
+     * @param now the current time, in nanoseconds
+     * @return the estimated number of occurrences of the key, including this one
+     */
+    int increment(long high, long low, long now) {
+        if (now - this.windowStart >= this.windowNanos) {
+            rotate(now);
+        }
+
+        AtomicIntegerArray current = this.current;
+        AtomicIntegerArray previous = this.previous;
+        int width = this.mask + 1;
+
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * width + index(high, low, SEEDS[row]);
+            int count = current.incrementAndGet(index) + previous.get(index);
+            estimate = Math.min(estimate, count);
+        }
+        return estimate;
+    }
+
+    private int index(long high, long low, long seed) {
+        long h = (high ^ seed) * 0xFF51_AFD7_ED55_8CCDL;
+        h = (h ^ low ^ (h >>> 32)) * seed;
+        h ^= h >>> 29;
+        return (int) h & this.mask;
+    }
+
+    private synchronized void rotate(long now) {
+        if (now - this.windowStart < this.windowNanos) {
+            return;
+        }
+
+        AtomicIntegerArray expired = this.previous;
+        clear(expired);
+        if (now - this.windowStart >= this.windowNanos * 2) {
+            // the current window is stale too
+            clear(this.current);
+        }
+
+        this.previous = this.current;
+        this.current = expired;
+        this.windowStart = now;
+    }
+
+    private static void clear(AtomicIntegerArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            array.set(i, 0);
+        }
+    }
+
+}
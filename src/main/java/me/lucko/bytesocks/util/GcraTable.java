@@ -0,0 +1,193 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash table mapping 128 bit keys to a GCRA "theoretical arrival time".
+ *
+ * <p>The table is split into independently locked stripes. Each stripe uses open
+ * addressing over primitive arrays, so looking up or updating an existing key
+ * doesn't allocate. Entries whose arrival time has passed are equivalent to absent
+ * ones, and are discarded whenever a stripe needs to grow.</p>
+ *
+ * <p>The table can optionally be bounded. When a stripe is full of live entries,
+ * a quarter of them are evicted, those with the earliest arrival times (the least
+ * restricted keys) first, so the heaviest keys are retained.</p>
+ */
+final class GcraTable {
+
+    /** The number of stripes, must be a power of two */
+    private static final int STRIPES = 64;
+    /** The initial capacity of each stripe, must be a power of two */
+    private static final int INITIAL_CAPACITY = 16;
+    /** Marks an empty slot in {@link Stripe#arrivals} */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Creates a new table.
+     *
+     * @param maxEntries the max number of entries to hold, or 0 for no limit
+     */
+    GcraTable(int maxEntries) {
+        int maxStripeEntries = maxEntries <= 0 ? Integer.MAX_VALUE : Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new Stripe(maxStripeEntries);
+        }
+    }
+
+    /**
+     * Records an action for the given key, unless doing so would exceed the limit.
+     *
+     * @param high the high 64 bits of the key
+     * @param low the low 64 bits of the key
+     * @param now the current time, in nanoseconds
+     * @param emissionInterval the interval between actions at the sustained rate, in nanoseconds
+     * @param burstTolerance how far ahead of the sustained rate the key may get, in nanoseconds
+     * @param initialDebt how far ahead of the sustained rate a key starts if it isn't already tracked
+     * @return true if the action exceeds the limit
+     */
+    boolean check(long high, long low, long now, long emissionInterval, long burstTolerance, long initialDebt) {
+        int hash = hash(high, low);
+        Stripe stripe = this.stripes[hash >>> 26];
+        synchronized (stripe) {
+            return stripe.check(high, low, hash, now, emissionInterval, burstTolerance, initialDebt);
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E37_79B9_7F4A_7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xFF51_AFD7_ED55_8CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static final class Stripe {
+        private final int maxSize;
+        private long[] highs;
+        private long[] lows;
+        private long[] arrivals;
+        private int size;
+
+        Stripe(int maxSize) {
+            this.maxSize = maxSize;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            this.highs = new long[capacity];
+            this.lows = new long[capacity];
+            this.arrivals = new long[capacity];
+            Arrays.fill(this.arrivals, EMPTY);
+            this.size = 0;
+        }
+
+        boolean check(long high, long low, int hash, long now, long emissionInterval, long burstTolerance, long initialDebt) {
+            int slot = find(high, low, hash);
+            boolean present = this.arrivals[slot] != EMPTY;
+
+            long arrival = present && this.arrivals[slot] - now > 0 ? this.arrivals[slot] : now + (present ? 0 : initialDebt);
+            if (arrival - now > burstTolerance) {
+                return true;
+            }
+
+            long nextArrival = arrival + emissionInterval;
+            if (present) {
+                this.arrivals[slot] = nextArrival;
+            } else {
+                if (this.size + 1 > this.maxSize || (this.size + 1) * 4 > this.arrivals.length * 3) {
+                    rebuild(now);
+                    slot = find(high, low, hash);
+                }
+                this.highs[slot] = high;
+                this.lows[slot] = low;
+                this.arrivals[slot] = nextArrival;
+                this.size++;
+            }
+            return false;
+        }
+
+        private int find(long high, long low, int hash) {
+            int mask = this.arrivals.length - 1;
+            int slot = hash & mask;
+            while (this.arrivals[slot] != EMPTY && (this.highs[slot] != high || this.lows[slot] != low)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // drops expired entries (and the least restricted ones if full), and resizes to fit those that remain
+        private void rebuild(long now) {
+            long[] highs = this.highs;
+            long[] lows = this.lows;
+            long[] arrivals = this.arrivals;
+
+            int live = 0;
+            for (long arrival : arrivals) {
+                if (arrival != EMPTY && arrival - now > 0) {
+                    live++;
+                }
+            }
+
+            // leave room for one more entry - and if the stripe is full, evict a quarter of it,
+            // so the cost of the rebuild is spread over many inserts
+            int keep = live < this.maxSize ? live : this.maxSize - Math.max(1, this.maxSize / 4);
+            long cutoff = now;
+            if (keep > 0 && keep < live) {
+                long[] liveArrivals = new long[live];
+                int n = 0;
+                for (long arrival : arrivals) {
+                    if (arrival != EMPTY && arrival - now > 0) {
+                        liveArrivals[n++] = arrival - now;
+                    }
+                }
+                Arrays.sort(liveArrivals);
+                cutoff = now + liveArrivals[live - keep] - 1;
+            }
+
+            int capacity = INITIAL_CAPACITY;
+            while ((keep + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            allocate(capacity);
+
+            for (int i = 0; i < arrivals.length && this.size < keep; i++) {
+                if (arrivals[i] != EMPTY && arrivals[i] - cutoff > 0) {
+                    int slot = find(highs[i], lows[i], hash(highs[i], lows[i]));
+                    this.highs[slot] = highs[i];
+                    this.lows[slot] = lows[i];
+                    this.arrivals[slot] = arrivals[i];
+                    this.size++;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.util;
+
+/**
+ * Allocation-free parsing of IP address strings into a compact binary form.
+ *
+ * <p>Addresses are represented as 128 bits, split into two longs. IPv4 addresses
+ * are mapped into the IPv6 space ({@code ::ffff:a.b.c.d}).</p>
+ */
+public final class IpAddresses {
+    private IpAddresses() {}
+
+    /** The prefix of IPv4-mapped IPv6 addresses, in the low 64 bits */
+    private static final long IPV4_MAPPED_PREFIX = 0x0000_FFFF_0000_0000L;
+
+    /**
+     * The top byte used for keys derived from strings that aren't valid addresses.
+     * This is the IPv6 multicast range, which is never a source address.
+     */
+    private static final long UNPARSEABLE_MARKER = 0xFF00_0000_0000_0000L;
+
+    /**
+     * Parses an IP address into its 128 bit binary form.
+     *
+     * <p>If the string isn't a valid address, a hash of the string is written
+     * instead, so it can still be used as a key.</p>
+     *
+     * @param address the address string
+     * @param out the array to write the high and low 64 bits of the address into
+     * @return true if the address was valid
+     */
+    public static boolean parse(CharSequence address, long[] out) {
+        int start = 0;
+        int end = address.length();
+
+        // strip brackets & zone id
+        if (end >= 2 && address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (address.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+
+        long ipv4 = parseIpv4(address, start, end);
+        if (ipv4 != -1) {
+            out[0] = 0;
+            out[1] = IPV4_MAPPED_PREFIX | ipv4;
+            return true;
+        }
+
+        if (parseIpv6(address, start, end, out)) {
+            return true;
+        }
+
+        hash(address, out);
+        return false;
+    }
+
+    /**
+     * Gets if a parsed address is an IPv4 address.
+     *
+     * @param high the high 64 bits
+     * @param low the low 64 bits
+     * @return true if the address is IPv4
+     */
+    public static boolean isIpv4(long high, long low) {
+        return high == 0 && (low & 0xFFFF_FFFF_0000_0000L) == IPV4_MAPPED_PREFIX;
+    }
+
+    private static long parseIpv4(CharSequence s, int start, int end) {
+        long value = 0;
+        int octet = 0;
+        int digits = 0;
+        int octets = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || octets == 3) {
+                    return -1;
+                }
+                value = (value << 8) | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1;
+            }
+        }
+
+        if (digits == 0 || octets != 3) {
+            return -1;
+        }
+        return (value << 8) | octet;
+    }
+
+    private static boolean parseIpv6(CharSequence s, int start, int end, long[] out) {
+        // groups before the "::" are accumulated into head, groups after it into tail
+        long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+        int headGroups = 0, tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - i < 2) {
+            return false;
+        }
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < end) {
+            // find the end of the group
+            int groupEnd = i;
+            boolean dotted = false;
+            while (groupEnd < end && s.charAt(groupEnd) != ':') {
+                if (s.charAt(groupEnd) == '.') {
+                    dotted = true;
+                }
+                groupEnd++;
+            }
+
+            int groupCount;
+            long groupValue;
+            if (dotted) {
+                // embedded IPv4 address, must be the last group
+                if (groupEnd != end) {
+                    return false;
+                }
+                groupValue = parseIpv4(s, i, groupEnd);
+                if (groupValue == -1) {
+                    return false;
+                }
+                groupCount = 2;
+            } else {
+                int length = groupEnd - i;
+                if (length == 0 || length > 4) {
+                    return false;
+                }
+                groupValue = 0;
+                for (int j = i; j < groupEnd; j++) {
+                    int digit = Character.digit(s.charAt(j), 16);
+                    if (digit == -1) {
+                        return false;
+                    }
+                    groupValue = (groupValue << 4) | digit;
+                }
+                groupCount = 1;
+            }
+
+            int bits = groupCount * 16;
+            if (compressed) {
+                tailHigh = (tailHigh << bits) | (tailLow >>> (64 - bits));
+                tailLow = (tailLow << bits) | groupValue;
+                tailGroups += groupCount;
+            } else {
+                headHigh = (headHigh << bits) | (headLow >>> (64 - bits));
+                headLow = (headLow << bits) | groupValue;
+                headGroups += groupCount;
+            }
+            if (headGroups + tailGroups > 8) {
+                return false;
+            }
+
+            i = groupEnd;
+            if (i == end) {
+                break;
+            }
+
+            // skip the separator
+            if (i + 1 < end && s.charAt(i + 1) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i += 2;
+            } else {
+                i++;
+                if (i == end) {
+                    return false;
+                }
+            }
+        }
+
+        int groups = headGroups + tailGroups;
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+
+        // move the head groups to the top of the address
+        int shift = (8 - headGroups) * 16;
+        long high;
+        long low;
+        if (shift == 0) {
+            high = headHigh;
+            low = headLow;
+        } else if (shift >= 64) {
+            high = shift == 128 ? 0 : headLow << (shift - 64);
+            low = 0;
+        } else {
+            high = (headHigh << shift) | (headLow >>> (64 - shift));
+            low = headLow << shift;
+        }
+
+        out[0] = high | tailHigh;
+        out[1] = low | tailLow;
+        return true;
+    }
+
+    private static void hash(CharSequence s, long[] out) {
+        long h1 = 0xCBF2_9CE4_8422_2325L;
+        long h2 = 0x9E37_79B9_7F4A_7C15L;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h1 = (h1 ^ c) * 0x0000_0100_0000_01B3L;
+            h2 = Long.rotateLeft(h2 ^ c, 31) * 0xFF51_AFD7_ED55_8CCDL;
+        }
+        out[0] = UNPARSEABLE_MARKER | (h2 & 0x00FF_FFFF_FFFF_FFFFL);
+        out[1] = h1;
+    }
+
+}
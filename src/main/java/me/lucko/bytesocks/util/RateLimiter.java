@@ -25,29 +25,175 @@
 
 package me.lucko.bytesocks.util;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.base.Preconditions;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles a rate limit
+ *
+ * <p>Uses the generic cell rate algorithm (GCRA): each key stores a single timestamp,
+ * the "theoretical arrival time" of its next action. Up to the configured number of
+ * actions can happen at once, after which they are allowed at a smooth rate of one every
+ * {@code period / actions}, rather than the whole allowance resetting at a window edge.</p>
+ *
+ * <p>Keys are IP addresses, parsed into a 128 bit binary form. Checking a key that has
+ * been seen recently doesn't allocate.</p>
+ *
+ * <p>Limits can optionally also be applied to each subnet (see {@link SubnetMask}), and
+ * to all addresses together. Subnet keys are the masked address, so they share the
+ * same flat table layout as address keys.</p>
+ *
+ * <p>With {@link FloodProtection} enabled, actions are first counted in a fixed-size
+ * {@link CountMinSketch}, and keys only get an exact entry once their estimated count
+ * crosses a threshold. The number of exact entries is also capped, so memory use stays
+ * flat however many distinct addresses are seen.</p>
  */
 public class RateLimiter {
-    /** Rate limiter cache - allow x "actions" every x minutes */
-    private final LoadingCache<String, AtomicInteger> rateLimiter;
-    /** The number of actions allowed in each period  */
-    private final int actionsPerCycle;
+    /** Per-thread scratch space for parsed keys */
+    private static final ThreadLocal<long[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new long[2]);
+
+    /** If no actions are allowed at all, when the limit per address is 0 */
+    private final boolean denyAll;
+    /** The limit applied to each address, or null if no actions are allowed */
+    private final Level address;
+    /** The limit applied to each subnet, or null if disabled */
+    private final Level subnet;
+    /** The limit applied to all addresses together, or null if disabled */
+    private final Level global;
+
+    /** The mask used to find the subnet of an address */
+    private final SubnetMask subnetMask;
+
+    /** The sketch used to filter out infrequent addresses, or null if flood protection is disabled */
+    private final CountMinSketch sketch;
+    /** The estimated count an address must exceed before it is tracked exactly */
+    private final int promotionThreshold;
 
     public RateLimiter(int periodMins, int actionsPerCycle) {
-        this.rateLimiter = Caffeine.newBuilder()
-                .expireAfterWrite(periodMins, TimeUnit.MINUTES)
-                .build(key -> new AtomicInteger(0));
-        this.actionsPerCycle = actionsPerCycle;
+        this(periodMins, actionsPerCycle, 0, 0, null, null);
+    }
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param periodMins the length of the period, in minutes
+     * @param actionsPerCycle the number of actions allowed per address in each period, or 0 to allow none
+     * @param subnetActionsPerCycle the number of actions allowed per subnet in each period, or 0 for no limit
+     * @param globalActionsPerCycle the number of actions allowed in total in each period, or 0 for no limit
+     * @param subnetMask the mask used to find the subnet of an address, required if subnets are limited
+     * @param floodProtection the flood protection settings, or null
+     */
+    public RateLimiter(int periodMins, int actionsPerCycle, int subnetActionsPerCycle, int globalActionsPerCycle, SubnetMask subnetMask, FloodProtection floodProtection) {
+        Preconditions.checkArgument(periodMins > 0, "periodMins must be positive");
+        Preconditions.checkArgument(subnetActionsPerCycle <= 0 || subnetMask != null, "subnetMask is required to limit subnets");
+        long period = TimeUnit.MINUTES.toNanos(periodMins);
+        int maxTrackedKeys = floodProtection != null ? floodProtection.maxTrackedKeys : 0;
+
+        this.denyAll = actionsPerCycle <= 0;
+        this.address = this.denyAll ? null : new Level(period, actionsPerCycle, maxTrackedKeys);
+        this.subnet = subnetActionsPerCycle > 0 ? new Level(period, subnetActionsPerCycle, maxTrackedKeys) : null;
+        this.global = globalActionsPerCycle > 0 ? new Level(period, globalActionsPerCycle, 1) : null;
+        this.subnetMask = subnetMask;
+
+        if (floodProtection != null && !this.denyAll) {
+            this.sketch = new CountMinSketch(floodProtection.sketchWidth, period);
+            this.promotionThreshold = (int) ((long) actionsPerCycle * floodProtection.thresholdPercent / 100);
+        } else {
+            this.sketch = null;
+            this.promotionThreshold = 0;
+        }
     }
 
+    /**
+     * Records an action by the given address, charging the address, its subnet and
+     * the global limit in turn.
+     *
+     * @param ipAddress the address
+     * @return true if the action exceeds any of the limits
+     */
     public boolean check(String ipAddress) {
-        return this.rateLimiter.get(ipAddress).incrementAndGet() > this.actionsPerCycle;
+        if (this.denyAll) {
+            return true;
+        }
+
+        long[] key = KEY_BUFFER.get();
+        boolean valid = IpAddresses.parse(ipAddress, key);
+        long now = System.nanoTime();
+
+        if (checkAddress(key, now)) {
+            return true;
+        }
+        if (this.subnet != null) {
+            if (valid) {
+                this.subnetMask.apply(key);
+            }
+            if (this.subnet.check(key[0], key[1], now, 0)) {
+                return true;
+            }
+        }
+        return this.global != null && this.global.check(0, 0, now, 0);
+    }
+
+    private boolean checkAddress(long[] key, long now) {
+        if (this.sketch == null) {
+            return this.address.check(key[0], key[1], now, 0);
+        }
+
+        int estimate = this.sketch.increment(key[0], key[1], now);
+        if (estimate <= this.promotionThreshold) {
+            // not seen often enough to need exact tracking
+            return false;
+        }
+
+        // if the key is newly tracked, account for the actions already counted by the sketch
+        long debt = Math.min((long) (estimate - 1) * this.address.emissionInterval, this.address.burstTolerance);
+        return this.address.check(key[0], key[1], now, debt);
+    }
+
+    /**
+     * A single level of the limit (address, subnet or global).
+     */
+    private static final class Level {
+        /** The timestamps for each key */
+        private final GcraTable table;
+        /** The interval between actions at the sustained rate, in nanoseconds */
+        private final long emissionInterval;
+        /** How far ahead of the sustained rate a key may burst, in nanoseconds */
+        private final long burstTolerance;
+
+        Level(long period, int actionsPerCycle, int maxTrackedKeys) {
+            this.table = new GcraTable(maxTrackedKeys);
+            this.emissionInterval = period / actionsPerCycle;
+            this.burstTolerance = period - this.emissionInterval;
+        }
+
+        boolean check(long high, long low, long now, long initialDebt) {
+            return this.table.check(high, low, now, this.emissionInterval, this.burstTolerance, initialDebt);
+        }
+    }
+
+    /**
+     * Settings for bounding the memory used by a {@link RateLimiter} when it
+     * sees a very large number of distinct keys.
+     */
+    public static final class FloodProtection {
+        private final int sketchWidth;
+        private final int thresholdPercent;
+        private final int maxTrackedKeys;
+
+        /**
+         * Creates new flood protection settings.
+         *
+         * @param sketchWidth the number of counters in each row of the sketch
+         * @param thresholdPercent the percentage of the limit a key must reach before it is tracked exactly
+         * @param maxTrackedKeys the max number of keys to track exactly
+         */
+        public FloodProtection(int sketchWidth, int thresholdPercent, int maxTrackedKeys) {
+            Preconditions.checkArgument(thresholdPercent >= 0 && thresholdPercent < 100, "thresholdPercent must be between 0 and 99");
+            this.sketchWidth = sketchWidth;
+            this.thresholdPercent = thresholdPercent;
+            this.maxTrackedKeys = maxTrackedKeys;
+        }
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Groups IP addresses into subnets, by masking them to a fixed prefix length.
+ *
+ * <p>Separate prefix lengths are used for IPv4 and IPv6 addresses, since a single
+ * IPv6 client is usually given a whole /64.</p>
+ */
+public final class SubnetMask {
+
+    /** Per-thread scratch space for parsed keys */
+    private static final ThreadLocal<long[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+
+    public SubnetMask(int ipv4PrefixLength, int ipv6PrefixLength) {
+        Preconditions.checkArgument(ipv4PrefixLength >= 0 && ipv4PrefixLength <= 32, "ipv4PrefixLength must be between 0 and 32");
+        Preconditions.checkArgument(ipv6PrefixLength >= 0 && ipv6PrefixLength <= 128, "ipv6PrefixLength must be between 0 and 128");
+        this.ipv4PrefixLength = ipv4PrefixLength;
+        this.ipv6PrefixLength = ipv6PrefixLength;
+    }
+
+    /**
+     * Masks a parsed address (see {@link IpAddresses#parse}) to its subnet, in place.
+     *
+     * @param address the high and low 64 bits of the address
+     */
+    public void apply(long[] address) {
+        if (IpAddresses.isIpv4(address[0], address[1])) {
+            // keep the ::ffff: prefix, mask the last 32 bits
+            address[1] &= ~(0xFFFF_FFFFL >>> this.ipv4PrefixLength);
+        } else {
+            address[0] &= mask(this.ipv6PrefixLength);
+            address[1] &= mask(Math.max(0, this.ipv6PrefixLength - 64));
+        }
+    }
+
+    /**
+     * Gets a string that identifies the subnet of the given address.
+     *
+     * <p>Strings that aren't valid addresses are returned unchanged.</p>
+     *
+     * @param ipAddress the address
+     * @return the subnet key
+     */
+    public String getKey(String ipAddress) {
+        long[] key = KEY_BUFFER.get();
+        if (!IpAddresses.parse(ipAddress, key)) {
+            return ipAddress;
+        }
+        apply(key);
+        return Long.toHexString(key[0]) + ':' + Long.toHexString(key[1]);
+    }
+
+    // a mask with the top bits set, for a prefix length (up to 64)
+    private static long mask(int prefixLength) {
+        if (prefixLength <= 0) {
+            return 0;
+        }
+        return prefixLength >= 64 ? -1L : ~(-1L >>> prefixLength);
+    }
+
+}
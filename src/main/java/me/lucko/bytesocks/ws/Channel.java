@@ -25,27 +25,57 @@
 
 package me.lucko.bytesocks.ws;
 
+import io.jooby.Context;
 import io.jooby.WebSocket;
 import io.jooby.WebSocketCloseStatus;
 import io.jooby.WebSocketMessage;
 import io.jooby.internal.WebSocketMessageImpl;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
-import io.prometheus.client.Summary;
 import me.lucko.bytesocks.BytesocksServer;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+import me.lucko.bytesocks.metrics.MetricLabels;
+import me.lucko.bytesocks.metrics.SizeHistogram;
+import me.lucko.bytesocks.metrics.TopTalkers;
 import me.lucko.bytesocks.util.RateLimiter;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Channel implements WebSocket.OnConnect, WebSocket.OnMessage, WebSocket.OnClose, WebSocket.OnError {
 
-    /** Logger instance */
-    private static final Logger LOGGER = LogManager.getLogger(Channel.class);
+    private static final Client[] NO_CLIENTS = new Client[0];
+
+    /** The max length of a conflation key, in bytes */
+    private static final int MAX_CONFLATION_KEY_LENGTH = 64;
+    /** The max length of a peer id, in bytes */
+    private static final int MAX_PEER_ID_LENGTH = 8;
+    /** The max length of a topic, in bytes */
+    private static final int MAX_TOPIC_LENGTH = 64;
+    /** The max number of topic prefixes a client can subscribe to */
+    private static final int MAX_SUBSCRIPTIONS = 32;
+    /** The command that subscribes a client to a topic prefix */
+    private static final byte[] SUBSCRIBE_COMMAND = "!sub ".getBytes(StandardCharsets.US_ASCII);
+    /** The command that unsubscribes a client from a topic prefix */
+    private static final byte[] UNSUBSCRIBE_COMMAND = "!unsub ".getBytes(StandardCharsets.US_ASCII);
 
     public static final Gauge CLIENTS_GAUGE = Gauge.build()
             .name("bytesocks_clients")
@@ -59,10 +89,32 @@ public class Channel implements WebSocket.OnConnect, WebSocket.OnMessage, WebSoc
             .labelNames("useragent")
             .register();
 
-    public static final Summary MESSAGES_SIZE_SUMMARY = Summary.build()
-            .name("bytesocks_messages_size_bytes")
-            .help("The size of messages processed")
-            .labelNames("useragent")
+    public static final SizeHistogram MESSAGES_SIZE_HISTOGRAM = new SizeHistogram(
+            "bytesocks_messages_size_bytes",
+            "The size of messages processed",
+            "useragent"
+    ).register();
+
+    public static final Counter BACKPRESSURE_PAUSES_COUNTER = Counter.build()
+            .name("bytesocks_backpressure_pauses_total")
+            .help("The number of times reads were paused in a channel because a client fell behind")
+            .register();
+
+    public static final Counter DIRECT_MESSAGES_COUNTER = Counter.build()
+            .name("bytesocks_direct_messages_total")
+            .help("The number of messages addressed to a single peer")
+            .labelNames("result")
+            .register();
+
+    public static final Counter TOPIC_FILTERED_COUNTER = Counter.build()
+            .name("bytesocks_topic_filtered_total")
+            .help("The number of deliveries skipped because the recipient isn't subscribed to the message's topic")
+            .register();
+
+    public static final Counter SESSIONS_COUNTER = Counter.build()
+            .name("bytesocks_sessions_total")
+            .help("The number of sessions started in resumable channels")
+            .labelNames("result")
             .register();
 
     /** The channel registry */
@@ -72,21 +124,74 @@ public class Channel implements WebSocket.OnConnect, WebSocket.OnMessage, WebSoc
     private final String id;
     /** The ip address of the client that created the channel */
     private final String creatorIpAddress;
-    /** The time when the channel was created */
-    private final long creationTime = System.currentTimeMillis();
-    /** A collection of connected sockets */
-    private final Set<WebSocket> sockets = ConcurrentHashMap.newKeySet();
+    /**
+     * The connected clients.
+     *
+     * <p>Joins and leaves are rare compared to messages, so the array is replaced
+     * (copy-on-write) whenever it changes, and relays just read the current snapshot.</p>
+     */
+    private volatile Client[] clients = NO_CLIENTS;
     /** The rate limiter */
     private final RateLimiter rateLimiter;
     /** The max number of clients allowed to connect */
     private final int maxClients;
-
-    public Channel(ChannelRegistry registry, String id, String creatorIpAddress, RateLimiter rateLimiter, int maxClients) {
+    /** The outbound budget for each client */
+    private final OutboundQueue.Limits outboundLimits;
+    /** The features enabled for the channel */
+    private final Set<ChannelFeature> features;
+    /** The watermarks used to detect slow clients in {@link ChannelFeature#BACKPRESSURE} channels */
+    private final WriteBufferWaterMark backpressureWaterMark;
+    /** The clients that are currently falling behind, guarded by itself */
+    private final Set<Client> slowClients = new HashSet<>();
+    /** The pending timeout that closes the channel if nobody (re)joins */
+    private volatile Timeout joinTimeout;
+    /** The traffic recorder, or null if traffic isn't being recorded */
+    private final TrafficRecorder recorder;
+    /** The number identifying the channel in traffic recordings */
+    private final int recordingNumber;
+    /** The compressor used for clients that accept compressed messages, or null if compression is disabled */
+    private final MessageCompressor compressor;
+    /** The max total size of a streamed message, or 0 if fragmented messages are aggregated instead */
+    private final long streamMaxBytes;
+    /** The event log */
+    private final EventLog eventLog;
+    /** The labels used for client metrics */
+    private final MetricLabels metricLabels;
+    /** Samples messages to time */
+    private final LatencyMonitor latencyMonitor;
+    /** Tracks the busiest channels and senders */
+    private final TopTalkers topTalkers;
+    /** The recent messages replayed to joining clients, or null if history isn't kept */
+    private final MessageHistory history;
+    /** If clients can resume their session after reconnecting, which requires {@link #history} */
+    private final boolean resumable;
+    /** The client last connected with each session token, in resumable channels */
+    private final Map<String, Client> sessions = new ConcurrentHashMap<>();
+    /** Sessions claimed by a reconnect that has passed the pre-connect checks but not joined yet */
+    private final Map<String, Client> resumeClaims = new ConcurrentHashMap<>();
+    /** The last peer id given to a client, in {@link ChannelFeature#DIRECT} channels */
+    private final AtomicInteger lastPeerId = new AtomicInteger();
+
+    public Channel(ChannelRegistry registry, String id, String creatorIpAddress, Set<ChannelFeature> features, RateLimiter rateLimiter, int maxClients, OutboundQueue.Limits outboundLimits, WriteBufferWaterMark backpressureWaterMark) {
         this.registry = registry;
         this.id = id;
         this.creatorIpAddress = creatorIpAddress;
+        this.features = features.isEmpty() ? EnumSet.noneOf(ChannelFeature.class) : EnumSet.copyOf(features);
         this.rateLimiter = rateLimiter;
         this.maxClients = maxClients;
+        this.outboundLimits = outboundLimits;
+        this.backpressureWaterMark = backpressureWaterMark;
+        this.recorder = registry.getRecorder();
+        this.recordingNumber = this.recorder == null ? 0 : this.recorder.newChannelNumber();
+        this.compressor = registry.getCompressor();
+        this.streamMaxBytes = registry.getStreamMaxBytes();
+        this.eventLog = registry.getEventLog();
+        this.metricLabels = registry.getMetricLabels();
+        this.latencyMonitor = registry.getLatencyMonitor();
+        this.topTalkers = registry.getTopTalkers();
+        MessageHistory.Limits historyLimits = registry.getHistoryLimits();
+        this.resumable = hasFeature(ChannelFeature.RESUME) && historyLimits.isEnabled();
+        this.history = (hasFeature(ChannelFeature.HISTORY) || this.resumable) && historyLimits.isEnabled() ? new MessageHistory(historyLimits) : null;
     }
 
     public String getId() {
@@ -97,129 +202,762 @@ public class Channel implements WebSocket.OnConnect, WebSocket.OnMessage, WebSoc
         return this.creatorIpAddress;
     }
 
+    public boolean hasFeature(ChannelFeature feature) {
+        return this.features.contains(feature);
+    }
+
+    TrafficRecorder getRecorder() {
+        return this.recorder;
+    }
+
+    MetricLabels getMetricLabels() {
+        return this.metricLabels;
+    }
+
+    int getRecordingNumber() {
+        return this.recordingNumber;
+    }
+
     public int getConnectedCount() {
-        return this.sockets.size();
+        return this.clients.length;
     }
 
     public boolean moreClientsAllowed() {
-        return this.sockets.size() < this.maxClients;
+        return this.clients.length < this.maxClients;
+    }
+
+    private synchronized boolean addClient(Client client) {
+        Client[] clients = this.clients;
+        for (Client c : clients) {
+            if (c == client) {
+                return false;
+            }
+        }
+
+        Client[] newClients = Arrays.copyOf(clients, clients.length + 1);
+        newClients[clients.length] = client;
+        this.clients = newClients;
+        return true;
+    }
+
+    private synchronized boolean removeClient(Client client) {
+        Client[] clients = this.clients;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != client) {
+                continue;
+            }
+
+            Client[] newClients = new Client[clients.length - 1];
+            System.arraycopy(clients, 0, newClients, 0, i);
+            System.arraycopy(clients, i + 1, newClients, i, clients.length - i - 1);
+            this.clients = newClients;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean hasClient(Client client) {
+        for (Client c : this.clients) {
+            if (c == client) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void gracefullyClose() {
-        for (WebSocket socket : this.sockets) {
-            socket.close(WebSocketCloseStatus.SERVICE_RESTARTED);
+        for (Client client : this.clients) {
+            client.getSocket().close(WebSocketCloseStatus.SERVICE_RESTARTED);
         }
     }
 
-    public void audit() {
-        if (this.sockets.isEmpty() && (System.currentTimeMillis() - this.creationTime) > TimeUnit.MINUTES.toMillis(5)) {
-            close("no joins");
-            return;
+    /**
+     * Claims a session for a client reconnecting with the given token, if the session
+     * can be resumed from the given sequence number.
+     *
+     * <p>Each session can only be claimed once, so a token can't be used to get more
+     * than one connection past the connect rate limit and the client limit. If the
+     * claiming connection hasn't joined within the grace period (e.g. the upgrade
+     * failed), the session is given back, unless it has expired in the meantime.</p>
+     *
+     * @param sessionToken the session token
+     * @param sequence the sequence number of the last message the client received
+     * @return if the session was claimed
+     */
+    public boolean claimResume(String sessionToken, long sequence) {
+        if (!this.resumable || sequence < 0) {
+            return false;
+        }
+        synchronized (this.history) {
+            if (!this.history.canReplayAfter(sequence)) {
+                return false;
+            }
         }
 
-        for (WebSocket socket : this.sockets) {
-            checkSocketNotOpen(socket);
+        Client previous = this.sessions.remove(sessionToken);
+        if (previous == null) {
+            return false;
         }
+        this.resumeClaims.put(sessionToken, previous);
+        this.registry.getTimer().newTimeout(timeout -> {
+            // the session's expiry removes the claim too, so this can't revive an expired session
+            if (this.resumeClaims.remove(sessionToken, previous)) {
+                this.sessions.putIfAbsent(sessionToken, previous);
+            }
+        }, this.registry.getResumeGracePeriod(), TimeUnit.SECONDS);
+        return true;
     }
 
-    private boolean checkSocketNotOpen(WebSocket ws) {
-        if (!ws.isOpen()) {
-            LOGGER.info("[AUDIT]\n" +
-                    "    channel id = " + this.id + "\n" +
-                    "    reason = socket not open\n" +
-                    BytesocksServer.describeForLogger(ws.getContext())
-            );
-            onClose(ws, WebSocketCloseStatus.GOING_AWAY);
+    /**
+     * Schedules the channel to be closed if no clients have joined after the given delay.
+     *
+     * @param timer the timer
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param reason the reason logged if the channel is closed
+     */
+    void scheduleClose(Timer timer, long delay, TimeUnit unit, String reason) {
+        this.joinTimeout = timer.newTimeout(timeout -> {
+            if (this.clients.length == 0) {
+                close(reason);
+            }
+        }, delay, unit);
+    }
+
+    private boolean checkSocketNotOpen(Client client) {
+        if (!client.isOpen()) {
+            clientNotOpen(client);
             return true;
         }
         return false;
     }
 
+    // called when a client's connection is found to be closed without jooby having notified us
+    void clientNotOpen(Client client) {
+        if (!hasClient(client)) {
+            return;
+        }
+
+        log(EventLog.Type.AUDIT, client, -1, -1, "socket not open", null);
+        onClose(client.getSocket(), WebSocketCloseStatus.GOING_AWAY);
+    }
+
     public void close(String reason) {
-        LOGGER.info("[CLOSED]\n" +
-                "    channel id = " + this.id + "\n" +
-                "    reason = " + reason + "\n"
-        );
+        if (this.history != null) {
+            synchronized (this.history) {
+                this.history.close();
+            }
+        }
+        this.eventLog.log(EventLog.Type.CLOSED, this.id, null, null, null, -1, -1, reason, null);
         this.registry.channelClosed(this);
     }
 
     @Override
     public void onConnect(@Nonnull WebSocket ws) {
-        String label = BytesocksServer.getLabel(ws.getContext());
-        ws.attribute("label", label);
+        Client client = new Client(this, ws, this.outboundLimits);
+        ws.attribute("client", client);
+        connect(client);
+    }
+
+    void connect(Client client) {
+        if (hasFeature(ChannelFeature.DIRECT) && client.getPeerId() == null) {
+            client.setPeerId(Integer.toString(this.lastPeerId.incrementAndGet(), 36));
+        }
+
+        boolean added;
+        if (this.history != null) {
+            // add the client and replay the history atomically, so each message is sent
+            // to the client exactly once: from the history, or live by relay
+            synchronized (this.history) {
+                added = addClient(client);
+                if (added && this.resumable) {
+                    if (!startSession(client)) {
+                        // turned away, and already removed
+                        return;
+                    }
+                } else if (added) {
+                    this.history.replay(client, this.compressor);
+                }
+            }
+        } else {
+            added = addClient(client);
+        }
+        if (added) {
+            client.getMetrics().clients.inc();
+            if (hasFeature(ChannelFeature.DIRECT)) {
+                announceJoin(client);
+            }
+        }
+        client.installRelayHandler();
+        this.latencyMonitor.watch(client.getEventLoop());
+        client.watchForClose(this.registry.getTimer());
+
+        Timeout joinTimeout = this.joinTimeout;
+        if (joinTimeout != null) {
+            joinTimeout.cancel();
+        }
+
+        if (this.recorder != null) {
+            this.recorder.record(TrafficRecorder.Event.JOIN, this.recordingNumber, client.getRecordingNumber(), 0);
+        }
+
+        if (hasFeature(ChannelFeature.BACKPRESSURE)) {
+            client.setWriteBufferWaterMark(this.backpressureWaterMark);
+            synchronized (this.slowClients) {
+                if (!this.slowClients.isEmpty()) {
+                    client.setAutoRead(false);
+                }
+            }
+        }
+
+        log(EventLog.Type.CONNECTED, client, this.clients.length, -1, null, null);
+    }
+
+    /**
+     * Tells a client joining a {@link ChannelFeature#DIRECT} channel its peer id and
+     * those of the other clients, with <code>!peer &lt;id&gt; [&lt;other id&gt;...]</code>,
+     * and tells the other clients about it with <code>!join &lt;id&gt;</code>.
+     *
+     * @param client the client
+     */
+    private void announceJoin(Client client) {
+        String peerId = client.getPeerId();
+        StringBuilder peers = new StringBuilder("!peer ").append(peerId);
+        for (Client c : this.clients) {
+            if (c != client) {
+                peers.append(' ').append(c.getPeerId());
+                c.send(new TextWebSocketFrame("!join " + peerId));
+            }
+        }
+        client.send(new TextWebSocketFrame(peers.toString()));
+    }
 
-        if (this.sockets.add(ws)) {
-            CLIENTS_GAUGE.labels(label).inc();
+    /**
+     * Starts or resumes the session of a client joining a resumable channel.
+     *
+     * <p>The client is sent <code>!session &lt;token&gt; &lt;sequence&gt; &lt;resumed|new&gt;</code>,
+     * where the sequence is that of the last message relayed in the channel. If the
+     * client reconnected with a known token and the sequence number of the last message
+     * it received, and every message since is still kept, the session is resumed and
+     * just those messages follow. Otherwise a new session is started.</p>
+     *
+     * <p>Must be called while holding the history's lock.</p>
+     *
+     * @param client the client
+     * @return false if the client was turned away
+     */
+    private boolean startSession(Client client) {
+        Context ctx = client.getSocket().getContext();
+        String token = ctx.query("resume").valueOrNull();
+        long sequence = token == null ? -1 : ctx.query("seq").longValue(-1);
+
+        Client previous = null;
+        if (token != null) {
+            // the presented token is used up, whether or not the session is resumed
+            previous = this.resumeClaims.remove(token);
+            this.sessions.remove(token);
         }
 
-        LOGGER.info("[CONNECTED]\n" +
-                "    channel id = " + this.id + "\n" +
-                "    new connected count = " + this.sockets.size() + "\n" +
-                BytesocksServer.describeForLogger(ws.getContext())
-        );
+        boolean resumed = previous != null && sequence >= 0 && this.history.canReplayAfter(sequence);
+        if (previous != null) {
+            SESSIONS_COUNTER.labels(resumed ? "resumed" : "expired").inc();
+            boolean replacing = previous != client && hasClient(previous);
+            if (!resumed && this.clients.length - (replacing ? 1 : 0) > this.maxClients) {
+                // the claim let the client past the client limit, but the messages it missed
+                // have been dropped since, so it joins like any other client
+                removeClient(client);
+                log(EventLog.Type.RATE_LIMIT, client, -1, -1, "max-clients", null);
+                client.getSocket().close(WebSocketCloseStatus.POLICY_VIOLATION);
+                return false;
+            }
+            if (replacing) {
+                // the old connection hasn't noticed it is gone yet
+                previous.getSocket().close(WebSocketCloseStatus.GOING_AWAY);
+            }
+        } else {
+            SESSIONS_COUNTER.labels("new").inc();
+        }
+        if (!resumed) {
+            token = this.registry.getSessionTokenGenerator().generate();
+        }
+
+        client.setSessionToken(token);
+        this.sessions.put(token, client);
+
+        client.send(new TextWebSocketFrame("!session " + token + " " + this.history.getLastSequence() + (resumed ? " resumed" : " new")));
+        if (resumed) {
+            this.history.replay(client, this.compressor, sequence, token);
+        } else if (hasFeature(ChannelFeature.HISTORY)) {
+            this.history.replay(client, this.compressor);
+        }
+        return true;
     }
 
     @Override
     public void onClose(@Nonnull WebSocket ws, @Nonnull WebSocketCloseStatus status) {
-        if (this.sockets.remove(ws)) {
-            String label = ws.attribute("label");
-            CLIENTS_GAUGE.labels(label).dec();
+        Client client = ws.attribute("client");
+        if (client == null || !removeClient(client)) {
+            // already handled
+            return;
         }
 
-        LOGGER.info("[DISCONNECTED]\n" +
-                "    channel id = " + this.id + "\n" +
-                "    new connected count = " + this.sockets.size() + "\n" +
-                "    status = " + status + "\n" +
-                BytesocksServer.describeForLogger(ws.getContext())
-        );
+        client.getMetrics().clients.dec();
+        writabilityChanged(client, true);
 
-        if (this.sockets.isEmpty()) {
+        if (this.recorder != null) {
+            this.recorder.record(TrafficRecorder.Event.LEAVE, this.recordingNumber, client.getRecordingNumber(), 0);
+        }
+
+        log(EventLog.Type.DISCONNECTED, client, this.clients.length, status.getCode(), status.getReason(), null);
+
+        if (hasFeature(ChannelFeature.DIRECT)) {
+            for (Client c : this.clients) {
+                c.send(new TextWebSocketFrame("!leave " + client.getPeerId()));
+            }
+        }
+
+        if (this.resumable) {
+            // keep the session (and the channel) around for a while, so the client can reconnect
+            String token = client.getSessionToken();
+            Timer timer = this.registry.getTimer();
+            int gracePeriod = this.registry.getResumeGracePeriod();
+            if (token != null) {
+                timer.newTimeout(timeout -> {
+                    this.sessions.remove(token, client);
+                    this.resumeClaims.remove(token, client);
+                }, gracePeriod, TimeUnit.SECONDS);
+            }
+            if (this.clients.length == 0) {
+                scheduleClose(timer, gracePeriod, TimeUnit.SECONDS, "no clients");
+            }
+        } else if (this.clients.length == 0) {
             close("no clients");
         }
     }
 
     @Override
     public void onMessage(@Nonnull WebSocket ws, @Nonnull WebSocketMessage message) {
-        String ipAddress = BytesocksServer.getIpAddress(ws.getContext());
-
-        // check rate limit
-        if (this.rateLimiter.check(ipAddress)) {
-            LOGGER.info("[RATELIMIT]\n" +
-                    "    type = messages" + "\n" +
-                    "    channel id = " + this.id + "\n" +
-                    BytesocksServer.describeForLogger(ws.getContext())
-            );
-            ws.close(WebSocketCloseStatus.POLICY_VIOLATION);
+        // only reached for messages not handled by the RelayHandler (e.g. fragmented messages
+        // aggregated by jooby), so wrap the bytes and take the same path
+        Client client = ws.attribute("client");
+        if (client == null) {
             return;
         }
 
-        byte[] msg = ((WebSocketMessageImpl) message).bytes();
+        ByteBuf msg = Unpooled.wrappedBuffer(((WebSocketMessageImpl) message).bytes());
+        relay(client, client.isAggregatingBinary() ? new BinaryWebSocketFrame(msg) : new TextWebSocketFrame(msg));
+    }
+
+    /**
+     * Relays a frame sent by the given client to all other clients in the channel.
+     *
+     * <p>The frame's buffer is shared: each recipient is sent a retained duplicate,
+     * and the frame itself is released once the message has been forwarded. The
+     * same goes for the compressed frame, which is only created (once) if a
+     * recipient accepts compressed messages.</p>
+     *
+     * <p>In resumable channels, the frame is replaced by a copy stamped with its
+     * sequence number before it is forwarded.</p>
+     *
+     * @param sender the client that sent the frame
+     * @param frame the frame
+     */
+    void relay(Client sender, WebSocketFrame frame) {
+        long receivedAt = this.latencyMonitor.sample();
+        WebSocketFrame stamped = null;
+        WebSocketFrame compressed = null;
+        try {
+            if (checkRateLimited(sender)) {
+                return;
+            }
 
-        // forward message
-        for (WebSocket socket : this.sockets) {
-            if (socket.equals(ws)) {
+            ByteBuf content = frame.content();
+            int size = content.readableBytes();
+            int topicEnd = -1;
+            if (hasFeature(ChannelFeature.TOPICS)) {
+                if (frame instanceof TextWebSocketFrame && handleSubscription(sender, content)) {
+                    return;
+                }
+                topicEnd = topicEnd(content);
+            }
+
+            if (hasFeature(ChannelFeature.DIRECT)) {
+                int addressEnd = addressEnd(frame.content());
+                if (addressEnd >= 0) {
+                    if (relayDirect(sender, frame, addressEnd, receivedAt)) {
+                        messageRelayed(sender, frame instanceof BinaryWebSocketFrame, size);
+                    }
+                    return;
+                }
+            }
+
+            ByteBuf key = hasFeature(ChannelFeature.CONFLATE) ? conflationKey(content, topicEnd < 0 ? content.readerIndex() : topicEnd + 1) : null;
+
+            Client[] clients;
+            if (this.history != null) {
+                synchronized (this.history) {
+                    if (this.resumable) {
+                        stamped = this.history.stamp(frame, sender.getSessionToken());
+                    } else {
+                        this.history.add(frame);
+                    }
+                    clients = this.clients;
+                }
+            } else {
+                clients = this.clients;
+            }
+
+            // forward message
+            WebSocketFrame out = stamped != null ? stamped : frame;
+            if (clients.length == 2 && (clients[0] == sender || clients[1] == sender)) {
+                // fast path for the common case of a pair of clients
+                Client recipient = clients[0] == sender ? clients[1] : clients[0];
+                if (topicEnd >= 0 && !recipient.isSubscribed(content, content.readerIndex() + 1, topicEnd)) {
+                    TOPIC_FILTERED_COUNTER.inc();
+                } else if (this.compressor != null && recipient.acceptsCompressed()) {
+                    compressed = this.compressor.compress(out);
+                    forward(recipient, compressed, receivedAt, key);
+                } else {
+                    forward(recipient, out, receivedAt, key);
+                }
+            } else {
+                int filtered = 0;
+                for (Client client : clients) {
+                    if (client == sender) {
+                        continue;
+                    }
+                    if (topicEnd >= 0 && !client.isSubscribed(content, content.readerIndex() + 1, topicEnd)) {
+                        filtered++;
+                        continue;
+                    }
+
+                    if (this.compressor != null && client.acceptsCompressed()) {
+                        if (compressed == null) {
+                            compressed = this.compressor.compress(out);
+                        }
+                        forward(client, compressed, receivedAt, key);
+                    } else {
+                        forward(client, out, receivedAt, key);
+                    }
+                }
+                if (filtered != 0) {
+                    TOPIC_FILTERED_COUNTER.inc(filtered);
+                }
+            }
+
+            messageRelayed(sender, frame instanceof BinaryWebSocketFrame, size);
+        } finally {
+            if (compressed != null && compressed != stamped && compressed != frame) {
+                compressed.release();
+            }
+            if (stamped != null) {
+                stamped.release();
+            }
+            frame.release();
+        }
+    }
+
+    /**
+     * Handles <code>!sub &lt;prefix&gt;</code> and <code>!unsub &lt;prefix&gt;</code> messages
+     * in {@link ChannelFeature#TOPICS} channels, which aren't relayed.
+     *
+     * @param sender the client that sent the message
+     * @param content the message content
+     * @return if the message was a subscription command
+     */
+    private boolean handleSubscription(Client sender, ByteBuf content) {
+        int start = content.readerIndex();
+        int length = content.readableBytes();
+        if (length < 5 || content.getByte(start) != '!' || length > MAX_TOPIC_LENGTH + 7) {
+            return false;
+        }
+
+        if (startsWith(content, SUBSCRIBE_COMMAND)) {
+            byte[] prefix = ByteBufUtil.getBytes(content, start + SUBSCRIBE_COMMAND.length, length - SUBSCRIBE_COMMAND.length);
+            if (!sender.subscribe(prefix, MAX_SUBSCRIPTIONS)) {
+                log(EventLog.Type.AUDIT, sender, -1, -1, "too many subscriptions", null);
+            }
+            return true;
+        } else if (startsWith(content, UNSUBSCRIBE_COMMAND)) {
+            sender.unsubscribe(content, start + UNSUBSCRIBE_COMMAND.length, content.writerIndex());
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuf content, byte[] prefix) {
+        if (content.readableBytes() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (content.getByte(content.readerIndex() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the end of the topic of a message in a {@link ChannelFeature#TOPICS} channel,
+     * given as a <code>%&lt;topic&gt;\n</code> prefix.
+     *
+     * @param content the message content
+     * @return the index of the newline ending the topic, or -1 if the message isn't tagged
+     */
+    private static int topicEnd(ByteBuf content) {
+        int start = content.readerIndex();
+        if (content.readableBytes() < 2 || content.getByte(start) != '%') {
+            return -1;
+        }
+
+        int end = content.indexOf(start + 1, start + 2 + Math.min(MAX_TOPIC_LENGTH, content.readableBytes() - 2), (byte) '\n');
+        return end <= start ? -1 : end;
+    }
+
+    /**
+     * Relays a message addressed to a single peer, given as a <code>@&lt;peer id&gt;\n</code>
+     * prefix. The recipient is sent the message with the prefix replaced by the sender's
+     * peer id, so it can reply. The rest of the message isn't copied.
+     *
+     * <p>If there is no such peer, the message is dropped and the sender is sent
+     * <code>!unknown &lt;peer id&gt;</code>.</p>
+     *
+     * @param sender the client that sent the frame
+     * @param frame the frame (not released)
+     * @param addressEnd the index of the newline ending the address
+     * @param receivedAt when the message was received if it is being timed, otherwise 0
+     * @return if the peer was found
+     */
+    private boolean relayDirect(Client sender, WebSocketFrame frame, int addressEnd, long receivedAt) {
+        ByteBuf content = frame.content();
+        Client recipient = null;
+        for (Client client : this.clients) {
+            if (client != sender && isPeer(client, content, content.readerIndex() + 1, addressEnd)) {
+                recipient = client;
+                break;
+            }
+        }
+        if (recipient == null) {
+            DIRECT_MESSAGES_COUNTER.labels("unknown").inc();
+            String peerId = content.toString(content.readerIndex() + 1, addressEnd - content.readerIndex() - 1, StandardCharsets.UTF_8);
+            sender.send(new TextWebSocketFrame("!unknown " + peerId));
+            return false;
+        }
+
+        String senderId = sender.getPeerId();
+        ByteBuf header = content.alloc().buffer(senderId.length() + 2);
+        header.writeByte('@');
+        header.writeCharSequence(senderId, StandardCharsets.US_ASCII);
+        header.writeByte('\n');
+        ByteBuf body = content.retainedSlice(addressEnd + 1, content.writerIndex() - addressEnd - 1);
+
+        WebSocketFrame out = frame.replace(Unpooled.wrappedBuffer(header, body));
+        WebSocketFrame compressed = null;
+        try {
+            if (this.compressor != null && recipient.acceptsCompressed()) {
+                compressed = this.compressor.compress(out);
+                forward(recipient, compressed, receivedAt, null);
+            } else {
+                forward(recipient, out, receivedAt, null);
+            }
+            DIRECT_MESSAGES_COUNTER.labels("delivered").inc();
+            return true;
+        } finally {
+            if (compressed != null && compressed != out) {
+                compressed.release();
+            }
+            out.release();
+        }
+    }
+
+    /**
+     * Finds the end of the address of a message in a {@link ChannelFeature#DIRECT} channel.
+     *
+     * @param content the message content
+     * @return the index of the newline ending the address, or -1 if the message isn't addressed
+     */
+    private static int addressEnd(ByteBuf content) {
+        int start = content.readerIndex();
+        if (content.readableBytes() < 2 || content.getByte(start) != '@') {
+            return -1;
+        }
+
+        int end = content.indexOf(start + 1, start + 2 + Math.min(MAX_PEER_ID_LENGTH, content.readableBytes() - 2), (byte) '\n');
+        return end <= start + 1 ? -1 : end;
+    }
+
+    // compares the bytes in [from, to) with the client's peer id, without decoding them
+    private static boolean isPeer(Client client, ByteBuf content, int from, int to) {
+        String peerId = client.getPeerId();
+        if (peerId == null || peerId.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < peerId.length(); i++) {
+            if (content.getByte(from + i) != peerId.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts streaming a fragmented message sent by the given client to all other
+     * clients in the channel.
+     *
+     * <p>The frame is relayed in the same way as a complete message, and the rest
+     * of the message is relayed frame by frame through the returned stream.</p>
+     *
+     * @param sender the client that sent the frame
+     * @param frame the first frame of the message
+     * @return the stream, or null if the sender was rate limited or the frame was too big
+     */
+    MessageStream beginStream(Client sender, WebSocketFrame frame) {
+        if (checkRateLimited(sender)) {
+            frame.release();
+            return null;
+        }
+
+        ByteBuf content = frame.content();
+        int topicEnd = hasFeature(ChannelFeature.TOPICS) ? topicEnd(content) : -1;
+
+        Client[] clients = this.clients;
+        Client[] recipients = new Client[clients.length];
+        int count = 0;
+        for (Client client : clients) {
+            if (client == sender || checkSocketNotOpen(client)) {
                 continue;
             }
-            if (checkSocketNotOpen(socket)) {
+            if (topicEnd >= 0 && !client.isSubscribed(content, content.readerIndex() + 1, topicEnd)) {
+                TOPIC_FILTERED_COUNTER.inc();
                 continue;
             }
+            recipients[count++] = client;
+        }
+
+        MessageStream stream = new MessageStream(this, sender, Arrays.copyOf(recipients, count), frame instanceof BinaryWebSocketFrame, this.streamMaxBytes);
+        return stream.relay(frame) ? stream : null;
+    }
+
+    /**
+     * Gets if fragmented messages can be streamed to the current clients, rather than
+     * aggregated first.
+     *
+     * @return if messages can be streamed
+     */
+    boolean canStream() {
+        if (this.streamMaxBytes <= 0 || this.history != null || hasFeature(ChannelFeature.DIRECT)) {
+            return false;
+        }
+        for (Client client : this.clients) {
+            if (client.getOutboundQueue() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean checkRateLimited(Client sender) {
+        if (!this.rateLimiter.check(sender.getIpAddress())) {
+            return false;
+        }
+
+        log(EventLog.Type.RATE_LIMIT, sender, -1, -1, "messages", null);
+        sender.getSocket().close(WebSocketCloseStatus.POLICY_VIOLATION);
+        return true;
+    }
+
+    // called once a complete message has been relayed
+    void messageRelayed(Client sender, boolean binary, long size) {
+        if (this.recorder != null) {
+            TrafficRecorder.Event event = binary ? TrafficRecorder.Event.BINARY_MESSAGE : TrafficRecorder.Event.TEXT_MESSAGE;
+            this.recorder.record(event, this.recordingNumber, sender.getRecordingNumber(), (int) Math.min(size, Integer.MAX_VALUE));
+        }
+
+        Client.Metrics metrics = sender.getMetrics();
+        metrics.messages.inc();
+        metrics.messageSizes.observe(size);
+
+        this.topTalkers.record(this.id, sender.getIpAddress(), size);
+    }
+
+    private void forward(Client client, WebSocketFrame frame, long receivedAt, ByteBuf key) {
+        if (!checkSocketNotOpen(client)) {
+            client.send(frame.retainedDuplicate(), null, receivedAt, key == null ? null : key.retain());
+        }
+    }
+
+    /**
+     * Reads the conflation key of a message in a {@link ChannelFeature#CONFLATE} channel,
+     * given as a <code>#&lt;key&gt;\n</code> prefix (after the topic, if there is one).
+     *
+     * <p>The key is a slice of the content rather than a decoded string, so it costs
+     * no copy. It shares the content's reference count, so each recipient retains it.</p>
+     *
+     * @param content the message content
+     * @param start the index the key would start at
+     * @return the key, or null if the message doesn't have one
+     */
+    private static ByteBuf conflationKey(ByteBuf content, int start) {
+        int readable = content.writerIndex() - start;
+        if (readable < 2 || content.getByte(start) != '#') {
+            return null;
+        }
+
+        int end = content.indexOf(start + 1, start + 2 + Math.min(MAX_CONFLATION_KEY_LENGTH, readable - 2), (byte) '\n');
+        if (end <= start + 1) {
+            return null;
+        }
+        return content.slice(start + 1, end - start - 1);
+    }
 
-            socket.send(msg);
+    /**
+     * Called when a client's outbound buffer crosses one of the watermarks.
+     *
+     * <p>In {@link ChannelFeature#BACKPRESSURE} channels, reading from every client
+     * in the channel is paused while any of them is above the high watermark, and
+     * resumed once they have all drained below the low watermark.</p>
+     *
+     * @param client the client
+     * @param writable if the client's buffer is now below the low watermark
+     */
+    void writabilityChanged(Client client, boolean writable) {
+        if (!hasFeature(ChannelFeature.BACKPRESSURE)) {
+            return;
         }
 
-        String label = ws.attribute("label");
-        MESSAGES_COUNTER.labels(label).inc();
-        MESSAGES_SIZE_SUMMARY.labels(label).observe(msg.length);
+        synchronized (this.slowClients) {
+            boolean wasPaused = !this.slowClients.isEmpty();
+            if (writable) {
+                this.slowClients.remove(client);
+            } else {
+                this.slowClients.add(client);
+            }
+
+            boolean paused = !this.slowClients.isEmpty();
+            if (paused == wasPaused) {
+                return;
+            }
+            if (paused) {
+                BACKPRESSURE_PAUSES_COUNTER.inc();
+            }
+            for (Client c : this.clients) {
+                c.setAutoRead(!paused);
+            }
+        }
     }
 
     @Override
     public void onError(@Nonnull WebSocket ws, @Nonnull Throwable cause) {
-        LOGGER.error("[ERROR]\n" +
-                "    channel id = " + this.id + "\n" +
-                "    connected count = " + this.sockets.size() + "\n" +
-                BytesocksServer.describeForLogger(ws.getContext()),
-                cause
-        );
+        Client client = ws.attribute("client");
+        if (client != null) {
+            log(EventLog.Type.ERROR, client, this.clients.length, -1, null, cause);
+        } else {
+            this.eventLog.log(EventLog.Type.ERROR, this.id, BytesocksServer.getIpAddress(ws.getContext()), null, null, this.clients.length, -1, null, cause);
+        }
+    }
+
+    private void log(EventLog.Type type, Client client, int count, int status, String detail, Throwable error) {
+        this.eventLog.log(type, this.id, client.getIpAddress(), client.getUserAgent(), client.getOrigin(), count, status, detail, error);
     }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import java.util.Locale;
+
+/**
+ * Optional behaviours that can be enabled for a {@link Channel} when it is created.
+ */
+public enum ChannelFeature {
+
+    /** Stop reading from senders while any client in the channel is falling behind */
+    BACKPRESSURE("backpressure"),
+
+    /** Replay the most recent messages to clients when they join */
+    HISTORY("history"),
+
+    /** Stamp messages with sequence numbers, so clients can reconnect without missing any */
+    RESUME("resume"),
+
+    /** Only send backlogged clients the latest message for each key */
+    CONFLATE("conflate"),
+
+    /** Let clients address messages to a single peer, instead of broadcasting */
+    DIRECT("direct"),
+
+    /** Only send tagged messages to clients subscribed to their topic */
+    TOPICS("topics");
+
+    private final String id;
+
+    ChannelFeature(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * Parses a feature from its id.
+     *
+     * @param id the id
+     * @return the feature, or null if there is no feature with the given id
+     */
+    public static ChannelFeature parse(String id) {
+        String lowerCaseId = id.trim().toLowerCase(Locale.ROOT);
+        for (ChannelFeature feature : values()) {
+            if (feature.id.equals(lowerCaseId)) {
+                return feature;
+            }
+        }
+        return null;
+    }
+}
@@ -25,14 +25,22 @@
 
 package me.lucko.bytesocks.ws;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.Timer;
 import io.prometheus.client.Gauge;
+import me.lucko.bytesocks.log.EventLog;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+import me.lucko.bytesocks.metrics.MetricLabels;
+import me.lucko.bytesocks.metrics.TopTalkers;
 import me.lucko.bytesocks.util.RateLimiter;
+import me.lucko.bytesocks.util.SubnetMask;
+import me.lucko.bytesocks.util.TokenGenerator;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A registry of {@link Channel}s.
@@ -46,7 +54,13 @@ public class ChannelRegistry {
 
     /* The channels in the registry */
     private final Map<String, Channel> channelsById = new ConcurrentHashMap<>();
-    private final Multimap<String, Channel> channelsByCreatorIpAddress = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    /* The number of channels created by each ip address, only mutated while holding the map's per-key lock */
+    private final Map<String, AtomicInteger> channelCountsByCreatorIpAddress = new ConcurrentHashMap<>();
+    /* The number of channels created by each subnet, only mutated while holding the map's per-key lock */
+    private final Map<String, AtomicInteger> channelCountsByCreatorSubnet = new ConcurrentHashMap<>();
+
+    /** The mask used to find the subnet of a creator's ip address */
+    private final SubnetMask subnetMask;
 
     /** The rate limiter used to limit sending messages to a channel */
     private final RateLimiter sendRateLimiter;
@@ -54,27 +68,126 @@ public class ChannelRegistry {
     /** Max clients that connect to a channel */
     private final int channelMaxClients;
 
-    public ChannelRegistry(RateLimiter sendRateLimiter, int channelMaxClients) {
+    /** The outbound budget for each client */
+    private final OutboundQueue.Limits outboundLimits;
+
+    /** The watermarks used by backpressure channels */
+    private final WriteBufferWaterMark backpressureWaterMark;
+
+    /** The timer used to expire channels and check sockets */
+    private final Timer timer;
+
+    /** The traffic recorder, or null if traffic isn't being recorded */
+    private final TrafficRecorder recorder;
+
+    /** The compressor used for clients that negotiate permessage-deflate, or null if compression is disabled */
+    private final MessageCompressor compressor;
+
+    /** The max total size of a streamed message, or 0 if fragmented messages are aggregated instead */
+    private final long streamMaxBytes;
+
+    /** The event log */
+    private final EventLog eventLog;
+
+    /** The labels used for client metrics */
+    private final MetricLabels metricLabels;
+
+    /** Samples messages to time, and probes event loops */
+    private final LatencyMonitor latencyMonitor;
+
+    /** Tracks the busiest channels and senders */
+    private final TopTalkers topTalkers;
+
+    /** The limits for channels that keep message history */
+    private final MessageHistory.Limits historyLimits;
+
+    /** How long sessions in resumable channels outlive their connection, in seconds */
+    private final int resumeGracePeriod;
+
+    /** Generates session tokens for resumable channels */
+    private final TokenGenerator sessionTokenGenerator = new TokenGenerator(24);
+
+    public ChannelRegistry(Timer timer, SubnetMask subnetMask, RateLimiter sendRateLimiter, int channelMaxClients, OutboundQueue.Limits outboundLimits, WriteBufferWaterMark backpressureWaterMark, TrafficRecorder recorder, MessageCompressor compressor, long streamMaxBytes, EventLog eventLog, MetricLabels metricLabels, LatencyMonitor latencyMonitor, TopTalkers topTalkers, MessageHistory.Limits historyLimits, int resumeGracePeriod) {
+        this.timer = timer;
+        this.subnetMask = subnetMask;
         this.sendRateLimiter = sendRateLimiter;
         this.channelMaxClients = channelMaxClients;
+        this.outboundLimits = outboundLimits;
+        this.backpressureWaterMark = backpressureWaterMark;
+        this.recorder = recorder;
+        this.compressor = compressor;
+        this.streamMaxBytes = streamMaxBytes;
+        this.eventLog = eventLog;
+        this.metricLabels = metricLabels;
+        this.latencyMonitor = latencyMonitor;
+        this.topTalkers = topTalkers;
+        this.historyLimits = historyLimits;
+        this.resumeGracePeriod = resumeGracePeriod;
     }
 
     // called when a HTTP GET request is made to /create
-    public void registerNewChannel(String id, String ipAddress) {
-        Channel channel = new Channel(this, id, ipAddress, this.sendRateLimiter, this.channelMaxClients);
+    public void registerNewChannel(String id, String ipAddress, Set<ChannelFeature> features) {
+        Channel channel = new Channel(this, id, ipAddress, features, this.sendRateLimiter, this.channelMaxClients, this.outboundLimits, this.backpressureWaterMark);
         this.channelsById.put(id, channel);
-        this.channelsByCreatorIpAddress.put(ipAddress, channel);
+        increment(this.channelCountsByCreatorIpAddress, ipAddress);
+        increment(this.channelCountsByCreatorSubnet, this.subnetMask.getKey(ipAddress));
+        CHANNELS_GAUGE.inc();
+
+        if (this.recorder != null) {
+            int featureBits = 0;
+            for (ChannelFeature feature : features) {
+                featureBits |= 1 << feature.ordinal();
+            }
+            this.recorder.record(TrafficRecorder.Event.CREATE, channel.getRecordingNumber(), 0, featureBits);
+        }
+
+        // close the channel if nobody joins within 5 minutes
+        channel.scheduleClose(this.timer, 5, TimeUnit.MINUTES, "no joins");
     }
 
     // called to check rate limits
     public int getChannelCount(String ipAddress) {
-        return this.channelsByCreatorIpAddress.get(ipAddress).size();
+        AtomicInteger count = this.channelCountsByCreatorIpAddress.get(ipAddress);
+        return count == null ? 0 : count.get();
+    }
+
+    // called to check rate limits
+    public int getSubnetChannelCount(String ipAddress) {
+        AtomicInteger count = this.channelCountsByCreatorSubnet.get(this.subnetMask.getKey(ipAddress));
+        return count == null ? 0 : count.get();
+    }
+
+    // called to check rate limits
+    public int getTotalChannelCount() {
+        return this.channelsById.size();
     }
 
     // called when all sockets disconnect from a channel
     public void channelClosed(Channel channel) {
-        this.channelsById.remove(channel.getId());
-        this.channelsByCreatorIpAddress.remove(channel.getCreatorIpAddress(), channel);
+        if (this.channelsById.remove(channel.getId(), channel)) {
+            String ipAddress = channel.getCreatorIpAddress();
+            decrement(this.channelCountsByCreatorIpAddress, ipAddress);
+            decrement(this.channelCountsByCreatorSubnet, this.subnetMask.getKey(ipAddress));
+            CHANNELS_GAUGE.dec();
+
+            if (this.recorder != null) {
+                this.recorder.record(TrafficRecorder.Event.CLOSE, channel.getRecordingNumber(), 0, 0);
+            }
+        }
+    }
+
+    private static void increment(Map<String, AtomicInteger> counts, String key) {
+        counts.compute(key, (k, count) -> {
+            if (count == null) {
+                count = new AtomicInteger();
+            }
+            count.incrementAndGet();
+            return count;
+        });
+    }
+
+    private static void decrement(Map<String, AtomicInteger> counts, String key) {
+        counts.computeIfPresent(key, (k, count) -> count.decrementAndGet() == 0 ? null : count);
     }
 
     // called when the application stops
@@ -89,12 +202,48 @@ public class ChannelRegistry {
         return this.channelsById.get(id);
     }
 
-    // audits channels by removing closed websocket connections
-    public void auditChannels() {
-        for (Channel channel : this.channelsById.values()) {
-            channel.audit();
-        }
-        CHANNELS_GAUGE.set(this.channelsById.size());
+    Timer getTimer() {
+        return this.timer;
+    }
+
+    TrafficRecorder getRecorder() {
+        return this.recorder;
+    }
+
+    MessageCompressor getCompressor() {
+        return this.compressor;
+    }
+
+    long getStreamMaxBytes() {
+        return this.streamMaxBytes;
+    }
+
+    EventLog getEventLog() {
+        return this.eventLog;
+    }
+
+    MetricLabels getMetricLabels() {
+        return this.metricLabels;
+    }
+
+    LatencyMonitor getLatencyMonitor() {
+        return this.latencyMonitor;
+    }
+
+    TopTalkers getTopTalkers() {
+        return this.topTalkers;
+    }
+
+    MessageHistory.Limits getHistoryLimits() {
+        return this.historyLimits;
+    }
+
+    int getResumeGracePeriod() {
+        return this.resumeGracePeriod;
+    }
+
+    TokenGenerator getSessionTokenGenerator() {
+        return this.sessionTokenGenerator;
     }
 
 }
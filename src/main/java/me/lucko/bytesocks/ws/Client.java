@@ -0,0 +1,440 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.jooby.WebSocket;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import me.lucko.bytesocks.BytesocksServer;
+import me.lucko.bytesocks.metrics.SizeHistogram;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client connected to a {@link Channel}.
+ */
+public final class Client {
+
+    /** The name of the relay handler in the netty pipeline */
+    private static final String RELAY_HANDLER_NAME = "bytesocks-relay";
+    /** The name of the permessage-deflate decoder in the netty pipeline */
+    private static final String DEFLATE_DECODER_NAME = "bytesocks-deflate-decoder";
+    /** How often to poll sockets without a netty channel to check they are still open */
+    private static final long LIVENESS_CHECK_INTERVAL_SECONDS = 1;
+    /** How long after the connection closes to check that jooby has called onClose */
+    private static final long CLOSE_CHECK_DELAY_SECONDS = 1;
+
+    /** The channel the client is connected to */
+    private final Channel channel;
+    /** The jooby socket */
+    private final WebSocket socket;
+    /** The underlying netty channel, or null if it couldn't be located */
+    private final io.netty.channel.Channel nettyChannel;
+    /**
+     * The event loop of the netty channel, or null if there is no netty channel.
+     *
+     * <p>Channels are never moved between loops once they are registered, so every
+     * call into the {@link #outboundQueue} is made on (or posted to) this loop.</p>
+     */
+    private final EventLoop eventLoop;
+    /** The ip address of the client, resolved once on connect */
+    private final String ipAddress;
+    /** The metrics label of the client, resolved once on connect */
+    private final String label;
+    /** The metrics of the client, resolved once on connect */
+    private final Metrics metrics;
+    /** The user agent of the client, or null, resolved once on connect */
+    private final String userAgent;
+    /** The origin of the client, or null, resolved once on connect */
+    private final String origin;
+    /** The queue of frames waiting to be written to the client, or null if there is no netty channel */
+    private final OutboundQueue outboundQueue;
+    /** The number identifying the client in traffic recordings */
+    private final int recordingNumber;
+    /** The negotiated permessage-deflate extension, or null if the client doesn't accept compressed messages */
+    private final WebSocketServerExtension deflateExtension;
+    /** The token the client can resume its session with, or null if the channel isn't resumable */
+    private volatile String sessionToken;
+    /** The id other clients can address the client by, or null if the channel doesn't support direct messages */
+    private volatile String peerId;
+    /** The topic prefixes the client is subscribed to, or null to receive every topic */
+    private volatile byte[][] topics = null;
+    /** If the fragmented message being aggregated by jooby is binary */
+    private volatile boolean aggregatingBinary;
+
+    Client(Channel channel, WebSocket socket, OutboundQueue.Limits outboundLimits) {
+        this(channel, socket, NettyChannels.get(socket), outboundLimits);
+    }
+
+    Client(Channel channel, WebSocket socket, io.netty.channel.Channel nettyChannel, OutboundQueue.Limits outboundLimits) {
+        this.channel = channel;
+        this.socket = socket;
+        this.nettyChannel = nettyChannel;
+        this.eventLoop = nettyChannel == null ? null : nettyChannel.eventLoop();
+        this.ipAddress = BytesocksServer.getIpAddress(socket.getContext());
+        this.label = channel.getMetricLabels().resolve(BytesocksServer.getLabel(socket.getContext()));
+        this.metrics = new Metrics(this.label);
+        this.userAgent = socket.getContext().header("User-Agent").valueOrNull();
+        this.origin = socket.getContext().header("Origin").valueOrNull();
+        this.outboundQueue = this.nettyChannel == null ? null : new OutboundQueue(this.nettyChannel, outboundLimits, this.label);
+        this.recordingNumber = channel.getRecorder() == null ? 0 : channel.getRecorder().newClientNumber();
+        this.deflateExtension = this.nettyChannel == null ? null : this.nettyChannel.attr(DeflateNegotiationHandler.EXTENSION).get();
+    }
+
+    public Channel getChannel() {
+        return this.channel;
+    }
+
+    public WebSocket getSocket() {
+        return this.socket;
+    }
+
+    public String getIpAddress() {
+        return this.ipAddress;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public String getUserAgent() {
+        return this.userAgent;
+    }
+
+    public String getOrigin() {
+        return this.origin;
+    }
+
+    int getRecordingNumber() {
+        return this.recordingNumber;
+    }
+
+    boolean acceptsCompressed() {
+        return this.deflateExtension != null;
+    }
+
+    public boolean isOpen() {
+        return this.socket.isOpen();
+    }
+
+    EventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    void setAutoRead(boolean autoRead) {
+        if (this.nettyChannel != null) {
+            this.nettyChannel.config().setAutoRead(autoRead);
+        }
+    }
+
+    void setWriteBufferWaterMark(WriteBufferWaterMark waterMark) {
+        if (this.nettyChannel != null) {
+            this.nettyChannel.config().setWriteBufferWaterMark(waterMark);
+        }
+    }
+
+    /**
+     * Arranges for the channel to be notified if the connection closes without
+     * jooby calling {@link Channel#onClose}.
+     *
+     * <p>Normally this is a listener on the netty channel's close future. The close
+     * future completes before the pipeline (and so jooby) hears the channel is inactive,
+     * so the check is made a timer tick later, by which point jooby has normally called
+     * {@link Channel#onClose} with the real status. If the netty channel couldn't be
+     * located, the socket is polled on the timer instead.</p>
+     *
+     * @param timer the timer
+     */
+    void watchForClose(Timer timer) {
+        if (this.nettyChannel != null) {
+            this.nettyChannel.closeFuture().addListener(future -> timer.newTimeout(timeout -> this.channel.clientNotOpen(this), CLOSE_CHECK_DELAY_SECONDS, TimeUnit.SECONDS));
+        } else {
+            timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) {
+                    if (isOpen()) {
+                        timer.newTimeout(this, LIVENESS_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                    } else {
+                        Client.this.channel.clientNotOpen(Client.this);
+                    }
+                }
+            }, LIVENESS_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    boolean isAggregatingBinary() {
+        return this.aggregatingBinary;
+    }
+
+    void setAggregatingBinary(boolean aggregatingBinary) {
+        this.aggregatingBinary = aggregatingBinary;
+    }
+
+    String getSessionToken() {
+        return this.sessionToken;
+    }
+
+    void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    String getPeerId() {
+        return this.peerId;
+    }
+
+    void setPeerId(String peerId) {
+        this.peerId = peerId;
+    }
+
+    /**
+     * Gets if the client should receive a message with the given topic.
+     *
+     * <p>Called for every recipient of every tagged message, so the topic is compared
+     * in place.</p>
+     *
+     * @param content the message content
+     * @param from the index of the start of the topic
+     * @param to the index of the end of the topic (exclusive)
+     * @return if the client is subscribed to a prefix of the topic, or isn't subscribed to any
+     */
+    boolean isSubscribed(ByteBuf content, int from, int to) {
+        byte[][] topics = this.topics;
+        if (topics == null) {
+            return true;
+        }
+
+        for (byte[] prefix : topics) {
+            if (prefix.length <= to - from && regionEquals(prefix, content, from, prefix.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Subscribes the client to a topic prefix.
+     *
+     * @param prefix the prefix
+     * @param maxTopics the max number of prefixes a client can subscribe to
+     * @return false if the client is already subscribed to the max number of prefixes
+     */
+    synchronized boolean subscribe(byte[] prefix, int maxTopics) {
+        byte[][] topics = this.topics == null ? new byte[0][] : this.topics;
+        for (byte[] topic : topics) {
+            if (Arrays.equals(topic, prefix)) {
+                return true;
+            }
+        }
+        if (topics.length >= maxTopics) {
+            return false;
+        }
+
+        byte[][] newTopics = Arrays.copyOf(topics, topics.length + 1);
+        newTopics[topics.length] = prefix;
+        this.topics = newTopics;
+        return true;
+    }
+
+    /**
+     * Unsubscribes the client from a topic prefix, compared in place.
+     *
+     * <p>Once a client has unsubscribed from every prefix, it is back in its initial
+     * state, and receives every message again.</p>
+     *
+     * @param content the buffer containing the prefix
+     * @param from the index of the start of the prefix
+     * @param to the index of the end of the prefix (exclusive)
+     */
+    synchronized void unsubscribe(ByteBuf content, int from, int to) {
+        byte[][] topics = this.topics;
+        if (topics == null) {
+            return;
+        }
+
+        for (int i = 0; i < topics.length; i++) {
+            if (topics[i].length == to - from && regionEquals(topics[i], content, from, topics[i].length)) {
+                if (topics.length == 1) {
+                    this.topics = null;
+                    return;
+                }
+
+                byte[][] newTopics = new byte[topics.length - 1][];
+                System.arraycopy(topics, 0, newTopics, 0, i);
+                System.arraycopy(topics, i + 1, newTopics, i, topics.length - i - 1);
+                this.topics = newTopics;
+                return;
+            }
+        }
+    }
+
+    // compares the first length bytes of the array with those in the buffer from the given index
+    private static boolean regionEquals(byte[] bytes, ByteBuf content, int from, int length) {
+        for (int i = 0; i < length; i++) {
+            if (content.getByte(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    /**
+     * Installs a handler into the netty pipeline that relays complete data frames
+     * directly, instead of letting jooby copy them into a byte array first.
+     *
+     * <p>If the client negotiated permessage-deflate, the extension's decoder is
+     * installed ahead of the relay handler so that relayed frames are always
+     * uncompressed.</p>
+     *
+     * <p>If the pipeline doesn't look like we expect, the handler is installed at the
+     * front of the pipeline without relaying, and messages continue to arrive via
+     * {@link Channel#onMessage}.</p>
+     */
+    void installRelayHandler() {
+        if (this.nettyChannel == null) {
+            return;
+        }
+
+        ChannelPipeline pipeline = this.nettyChannel.pipeline();
+        if (pipeline.get(RELAY_HANDLER_NAME) != null) {
+            return;
+        }
+
+        ChannelHandlerContext decoder = pipeline.context(WebSocketFrameDecoder.class);
+        if (decoder != null) {
+            String previous = decoder.name();
+            if (this.deflateExtension != null) {
+                pipeline.addAfter(previous, DEFLATE_DECODER_NAME, this.deflateExtension.newExtensionDecoder());
+                previous = DEFLATE_DECODER_NAME;
+            }
+            pipeline.addAfter(previous, RELAY_HANDLER_NAME, new RelayHandler(this, true));
+        } else {
+            pipeline.addFirst(RELAY_HANDLER_NAME, new RelayHandler(this, false));
+        }
+    }
+
+    /**
+     * Sends a frame to the client.
+     *
+     * <p>Ownership of the frame is transferred, callers should pass a
+     * {@link WebSocketFrame#retainedDuplicate() retained duplicate} if the
+     * frame is being sent to more than one client.</p>
+     *
+     * @param frame the frame
+     */
+    void send(WebSocketFrame frame) {
+        send(frame, null, 0, null);
+    }
+
+    /**
+     * Sends a frame to the client.
+     *
+     * @param frame the frame
+     * @param stream the streamed message the frame is part of, or null if it is a complete message
+     * @param receivedAt when the message was received if it is being timed, otherwise 0
+     * @param key the conflation key of the message, or null, ownership of which is also transferred
+     * @see #send(WebSocketFrame)
+     */
+    void send(WebSocketFrame frame, MessageStream stream, long receivedAt, ByteBuf key) {
+        if (this.outboundQueue != null) {
+            EventLoop eventLoop = this.eventLoop;
+            if (eventLoop.inEventLoop()) {
+                this.outboundQueue.offer(frame, stream, receivedAt, key);
+            } else {
+                eventLoop.execute(() -> this.outboundQueue.offer(frame, stream, receivedAt, key));
+            }
+            return;
+        }
+
+        // fallback: copy and send via jooby (streams are never sent to these clients)
+        if (key != null) {
+            key.release();
+        }
+        try {
+            byte[] bytes = ByteBufUtil.getBytes(frame.content());
+            if (frame instanceof BinaryWebSocketFrame) {
+                this.socket.sendBinary(bytes);
+            } else {
+                this.socket.send(bytes);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Abandons a streamed message that was being sent to the client.
+     *
+     * @param stream the stream
+     */
+    void abortStream(MessageStream stream) {
+        if (this.outboundQueue == null) {
+            return;
+        }
+
+        EventLoop eventLoop = this.eventLoop;
+        if (eventLoop.inEventLoop()) {
+            this.outboundQueue.abort(stream);
+        } else {
+            eventLoop.execute(() -> this.outboundQueue.abort(stream));
+        }
+    }
+
+    /** The metric children for a client's label */
+    static final class Metrics {
+        final Gauge.Child clients;
+        final Counter.Child messages;
+        final SizeHistogram.Child messageSizes;
+
+        Metrics(String label) {
+            this.clients = Channel.CLIENTS_GAUGE.labels(label);
+            this.messages = Channel.MESSAGES_COUNTER.labels(label);
+            this.messageSizes = Channel.MESSAGES_SIZE_HISTOGRAM.labels(label);
+        }
+    }
+
+}
@@ -30,17 +30,12 @@ import io.jooby.StatusCode;
 import io.jooby.WebSocket;
 import io.jooby.WebSocketConfigurer;
 import io.jooby.exception.StatusCodeException;
-import me.lucko.bytesocks.BytesocksServer;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import me.lucko.bytesocks.log.EventLog;
 
 import javax.annotation.Nonnull;
 
 public class ConnectHandler implements WebSocket.Initializer {
 
-    /** Logger instance */
-    private static final Logger LOGGER = LogManager.getLogger(ConnectHandler.class);
-
     private final ChannelRegistry channelRegistry;
 
     public ConnectHandler(ChannelRegistry channelRegistry) {
@@ -56,10 +51,13 @@ public class ConnectHandler implements WebSocket.Initializer {
             throw new StatusCodeException(StatusCode.BAD_REQUEST, "Cannot connect to channel");
         }
 
-        LOGGER.info("[CONNECT]\n" +
-                "    channel id = " + id + "\n" +
-                BytesocksServer.describeForLogger(ctx)
-        );
+        this.channelRegistry.getEventLog().log(EventLog.Type.CONNECT, id, ctx, null);
+
+        // offer compression if the client supports it
+        MessageCompressor compressor = this.channelRegistry.getCompressor();
+        if (compressor != null) {
+            DeflateNegotiationHandler.negotiate(ctx, compressor);
+        }
 
         // delegate all handling to the underlying channel
         configurer.onConnect(channel);
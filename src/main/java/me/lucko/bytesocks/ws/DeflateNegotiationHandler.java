@@ -0,0 +1,184 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import com.google.common.base.Splitter;
+import io.jooby.Context;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Negotiates permessage-deflate during the websocket handshake.
+ *
+ * <p>jooby performs the handshake itself and doesn't support extensions, so the
+ * client's offer is checked before the handshake, and this handler is installed to
+ * add the extension to the 101 response on its way out. The negotiated extension is
+ * stored as an attribute of the netty channel for the {@link Client} to pick up.</p>
+ *
+ * <p>Only the decoder half of the extension is used - relayed messages are
+ * compressed by the {@link MessageCompressor} instead.</p>
+ */
+final class DeflateNegotiationHandler extends ChannelOutboundHandlerAdapter {
+
+    /** The attribute holding the extension negotiated for a channel */
+    static final AttributeKey<WebSocketServerExtension> EXTENSION = AttributeKey.valueOf("bytesocks-deflate-extension");
+
+    /** The name of the handler in the netty pipeline */
+    private static final String HANDLER_NAME = "bytesocks-deflate-negotiation";
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+    /**
+     * Checks if the client offered permessage-deflate, and if so arranges for it to be
+     * accepted when the handshake completes.
+     *
+     * @param ctx the upgrade request context
+     * @param compressor the compressor
+     */
+    static void negotiate(Context ctx, MessageCompressor compressor) {
+        String header = ctx.header(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS.toString()).valueOrNull();
+        if (header == null || !header.contains(PERMESSAGE_DEFLATE)) {
+            return;
+        }
+
+        io.netty.channel.Channel channel = NettyChannels.get(ctx);
+        if (channel == null) {
+            return;
+        }
+
+        ChannelPipeline pipeline = channel.pipeline();
+        ChannelHandlerContext encoder = pipeline.context(HttpServerCodec.class);
+        if (encoder == null) {
+            encoder = pipeline.context(HttpResponseEncoder.class);
+        }
+        if (encoder == null || pipeline.get(HANDLER_NAME) != null) {
+            return;
+        }
+
+        // accept server_no_context_takeover, but never a smaller server window (the
+        // jdk deflater always uses the max window size)
+        WebSocketServerExtensionHandshaker handshaker = new PerMessageDeflateServerExtensionHandshaker(compressor.getLevel(), false, 15, true, false);
+        for (WebSocketExtensionData offer : parse(header)) {
+            if (!PERMESSAGE_DEFLATE.equals(offer.name())) {
+                continue;
+            }
+
+            WebSocketServerExtension extension = handshaker.handshakeExtension(offer);
+            if (extension != null) {
+                pipeline.addAfter(encoder.name(), HANDLER_NAME, new DeflateNegotiationHandler(extension));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses the offers in a Sec-WebSocket-Extensions header.
+     *
+     * @param header the header value
+     * @return the offers, in order of preference
+     */
+    static List<WebSocketExtensionData> parse(String header) {
+        List<WebSocketExtensionData> offers = new ArrayList<>();
+        for (String offer : Splitter.on(',').trimResults().omitEmptyStrings().split(header)) {
+            List<String> parts = Splitter.on(';').trimResults().omitEmptyStrings().splitToList(offer);
+            if (parts.isEmpty()) {
+                continue;
+            }
+
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (String parameter : parts.subList(1, parts.size())) {
+                int eq = parameter.indexOf('=');
+                if (eq == -1) {
+                    parameters.put(parameter, null);
+                } else {
+                    String value = parameter.substring(eq + 1).trim();
+                    if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    parameters.put(parameter.substring(0, eq).trim(), value);
+                }
+            }
+            offers.add(new WebSocketExtensionData(parts.get(0), parameters));
+        }
+        return offers;
+    }
+
+    /** The negotiated extension */
+    private final WebSocketServerExtension extension;
+    /** The value of the Sec-WebSocket-Extensions response header */
+    private final String responseHeader;
+
+    private DeflateNegotiationHandler(WebSocketServerExtension extension) {
+        this.extension = extension;
+
+        // always ask for server_no_context_takeover, so compressed frames can be shared
+        WebSocketExtensionData data = extension.newReponseData();
+        StringBuilder header = new StringBuilder(data.name());
+        Map<String, String> parameters = new LinkedHashMap<>(data.parameters());
+        parameters.putIfAbsent(SERVER_NO_CONTEXT_TAKEOVER, null);
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            header.append("; ").append(parameter.getKey());
+            if (parameter.getValue() != null) {
+                header.append('=').append(parameter.getValue());
+            }
+        }
+        this.responseHeader = header.toString();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            // only the handshake response is of interest
+            ctx.pipeline().remove(this);
+
+            HttpResponse response = (HttpResponse) msg;
+            if (response.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code() && !response.headers().contains(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS)) {
+                response.headers().set(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, this.responseHeader);
+                ctx.channel().attr(EXTENSION).set(this.extension);
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+}
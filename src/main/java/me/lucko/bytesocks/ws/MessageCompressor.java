@@ -0,0 +1,128 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.prometheus.client.Counter;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses relayed messages for clients that negotiated permessage-deflate.
+ *
+ * <p>Clients are only offered the extension with {@code server_no_context_takeover},
+ * so every message is compressed independently of the ones before it. That means a
+ * message only needs to be compressed once, and the result can be shared between
+ * every recipient in the same way as the uncompressed frame.</p>
+ */
+public final class MessageCompressor {
+
+    public static final Counter COMPRESSED_COUNTER = Counter.build()
+            .name("bytesocks_compressed_messages_total")
+            .help("The number of relayed messages that were compressed")
+            .register();
+
+    public static final Counter COMPRESSED_BYTES_SAVED_COUNTER = Counter.build()
+            .name("bytesocks_compressed_bytes_saved_total")
+            .help("The number of bytes saved by compressing relayed messages, counted once per message")
+            .register();
+
+    /** The tail of a sync flushed deflate block, which permessage-deflate removes from the payload */
+    private static final int SYNC_FLUSH_TAIL = 0x0000FFFF;
+
+    /** The compression level */
+    private final int level;
+    /** The size in bytes below which messages are sent uncompressed */
+    private final int threshold;
+    /** Deflaters are reset after each message, so can be reused by the same thread */
+    private final ThreadLocal<Deflater> deflaters;
+
+    public MessageCompressor(int level, int threshold) {
+        this.level = level;
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Compresses a frame.
+     *
+     * <p>If the frame isn't worth compressing (it is below the threshold, or doesn't
+     * get any smaller) the same frame is returned. Otherwise a new frame is returned
+     * with the RSV1 bit set, which the caller is responsible for releasing.</p>
+     *
+     * @param frame the frame
+     * @return the compressed frame, or the frame itself
+     */
+    WebSocketFrame compress(WebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        int size = content.readableBytes();
+        if (size < this.threshold || frame.rsv() != 0 || !frame.isFinalFragment()) {
+            return frame;
+        }
+
+        boolean text = frame instanceof TextWebSocketFrame;
+        if (!text && !(frame instanceof BinaryWebSocketFrame)) {
+            return frame;
+        }
+
+        // only keep the result if it is smaller than the input, so the output
+        // buffer never needs to be bigger than that
+        ByteBuf out = content.alloc().buffer(size);
+        Deflater deflater = this.deflaters.get();
+        try {
+            deflater.setInput(content.nioBuffer());
+            ByteBuffer dst = out.nioBuffer(0, size);
+            int written = deflater.deflate(dst, Deflater.SYNC_FLUSH);
+            if (!dst.hasRemaining() || written < 4 || out.getInt(written - 4) != SYNC_FLUSH_TAIL) {
+                out.release();
+                return frame;
+            }
+            out.writerIndex(written - 4);
+        } catch (RuntimeException e) {
+            out.release();
+            throw e;
+        } finally {
+            deflater.reset();
+        }
+
+        COMPRESSED_COUNTER.inc();
+        COMPRESSED_BYTES_SAVED_COUNTER.inc(size - out.readableBytes());
+
+        return text
+                ? new TextWebSocketFrame(true, WebSocketExtension.RSV1, out)
+                : new BinaryWebSocketFrame(true, WebSocketExtension.RSV1, out);
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recent messages relayed in a {@link ChannelFeature#HISTORY} channel, which
+ * are replayed to clients when they join.
+ *
+ * <p>Messages are kept in pooled direct buffers. A message whose buffer is shared with
+ * other data is copied, so the history doesn't pin the (possibly much larger) buffer
+ * it was read into. The total size of every channel's history is bounded by a global
+ * budget - when it runs out, the oldest messages in the channel are dropped to make
+ * room.</p>
+ *
+ * <p>In {@link ChannelFeature#RESUME} channels, messages are also stamped with a
+ * sequence number, so clients that reconnect can be sent just the messages they
+ * missed.</p>
+ *
+ * <p>All methods must be called while holding the history's lock, which the channel
+ * also holds while it adds clients, so that a joining client receives each message
+ * exactly once: either from the history or live.</p>
+ */
+public final class MessageHistory {
+
+    public static final Gauge HISTORY_BYTES_GAUGE = Gauge.build()
+            .name("bytesocks_history_bytes")
+            .help("The total size of the messages kept for clients joining channels")
+            .register();
+
+    public static final Counter HISTORY_REPLAYED_COUNTER = Counter.build()
+            .name("bytesocks_history_replayed_messages_total")
+            .help("The number of messages replayed to clients joining channels")
+            .register();
+
+    public static final Counter HISTORY_DROPPED_COUNTER = Counter.build()
+            .name("bytesocks_history_dropped_messages_total")
+            .help("The number of messages evicted from, or never added to, a channel's history because the global history budget ran out")
+            .register();
+
+    private final Limits limits;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    /** The total size of the frames */
+    private long bytes = 0;
+    /** The sequence number of the last stamped message */
+    private long lastSequence = 0;
+    /** The sequence number of the last stamped message that isn't kept */
+    private long droppedSequence = 0;
+    /** If the channel has closed, after which nothing is kept */
+    private boolean closed = false;
+
+    MessageHistory(Limits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Adds a relayed message to the history, dropping the oldest messages if needed.
+     *
+     * @param frame the frame (not retained)
+     */
+    void add(WebSocketFrame frame) {
+        int size = frame.content().readableBytes();
+        if (this.closed || size > this.limits.maxBytes) {
+            return;
+        }
+
+        keep(retain(frame, frame.content()), 0, null);
+    }
+
+    /**
+     * Stamps a relayed message with the next sequence number, and adds it to the
+     * history.
+     *
+     * <p>The stamped message is the original prefixed with <code>$&lt;sequence&gt;\n</code>.
+     * Only the prefix is written to a new buffer - the original content is shared.</p>
+     *
+     * @param frame the frame (not retained)
+     * @param session the session token of the sender
+     * @return the stamped frame, which the caller is responsible for releasing
+     */
+    WebSocketFrame stamp(WebSocketFrame frame, String session) {
+        long sequence = ++this.lastSequence;
+
+        ByteBuf content = frame.content();
+        ByteBuf header = content.alloc().buffer(21); // '$' + up to 19 digits + '\n'
+        header.writeByte('$');
+        header.writeCharSequence(Long.toString(sequence), StandardCharsets.US_ASCII);
+        header.writeByte('\n');
+        WebSocketFrame out = frame.replace(Unpooled.wrappedBuffer(header, content.retainedSlice()));
+
+        if (this.closed || out.content().readableBytes() > this.limits.maxBytes) {
+            this.droppedSequence = sequence;
+        } else {
+            keep(retain(out, content), sequence, session);
+        }
+        return out;
+    }
+
+    /**
+     * Gets a frame to keep in the history, with the same content as the given frame.
+     *
+     * <p>If the original content is a direct buffer of its own, the frame just shares it.
+     * Otherwise (a heap buffer, or a slice of a bigger buffer that it would pin) the
+     * content is copied into a pooled direct buffer of the right size.</p>
+     *
+     * @param frame the frame
+     * @param original the buffer the frame's content comes from
+     * @return the frame to keep
+     */
+    private static WebSocketFrame retain(WebSocketFrame frame, ByteBuf original) {
+        if (original.isDirect() && original.unwrap() == null && original.capacity() == original.readableBytes()) {
+            return frame.retainedDuplicate();
+        }
+
+        ByteBuf content = frame.content();
+        int size = content.readableBytes();
+        ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+        copy.writeBytes(content, content.readerIndex(), size);
+        return frame.replace(copy);
+    }
+
+    private void keep(WebSocketFrame frame, long sequence, String session) {
+        int size = frame.content().readableBytes();
+        while (!this.entries.isEmpty() && (this.entries.size() >= this.limits.maxMessages || this.bytes + size > this.limits.maxBytes)) {
+            removeOldest();
+        }
+        while (!this.limits.reserve(size)) {
+            HISTORY_DROPPED_COUNTER.inc();
+            if (this.entries.isEmpty()) {
+                this.droppedSequence = Math.max(this.droppedSequence, sequence);
+                frame.release();
+                return;
+            }
+            removeOldest();
+        }
+
+        this.entries.addLast(new Entry(frame, sequence, session));
+        this.bytes += size;
+    }
+
+    long getLastSequence() {
+        return this.lastSequence;
+    }
+
+    /**
+     * Gets if every stamped message after the given sequence number is still kept.
+     *
+     * @param sequence the sequence number
+     * @return if the messages after it can be replayed
+     */
+    boolean canReplayAfter(long sequence) {
+        return sequence >= this.droppedSequence && sequence <= this.lastSequence;
+    }
+
+    /**
+     * Sends every message in the history to a client.
+     *
+     * @param client the client
+     * @param compressor the compressor, or null
+     */
+    void replay(Client client, MessageCompressor compressor) {
+        replay(client, compressor, -1, null);
+    }
+
+    /**
+     * Sends the messages in the history after the given sequence number to a client,
+     * skipping messages the client sent itself.
+     *
+     * @param client the client
+     * @param compressor the compressor, or null
+     * @param after the sequence number, or -1 for every message
+     * @param session the client's session token, or null
+     */
+    void replay(Client client, MessageCompressor compressor, long after, String session) {
+        boolean compress = compressor != null && client.acceptsCompressed();
+        int count = 0;
+        for (Entry entry : this.entries) {
+            if (entry.sequence <= after || (session != null && session.equals(entry.session))) {
+                continue;
+            }
+
+            WebSocketFrame frame = entry.frame;
+            WebSocketFrame out = compress ? compressor.compress(frame) : frame;
+            client.send(out.retainedDuplicate());
+            if (out != frame) {
+                out.release();
+            }
+            count++;
+        }
+        HISTORY_REPLAYED_COUNTER.inc(count);
+    }
+
+    /**
+     * Releases every message, and stops keeping new ones.
+     */
+    void close() {
+        this.closed = true;
+        while (!this.entries.isEmpty()) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        Entry entry = this.entries.removeFirst();
+        int size = entry.frame.content().readableBytes();
+        entry.frame.release();
+        this.bytes -= size;
+        this.limits.release(size);
+        this.droppedSequence = Math.max(this.droppedSequence, entry.sequence);
+    }
+
+    /** A kept message */
+    private static final class Entry {
+        private final WebSocketFrame frame;
+        /** The sequence number, or 0 if the message wasn't stamped */
+        private final long sequence;
+        /** The session token of the sender, or null */
+        private final String session;
+
+        Entry(WebSocketFrame frame, long sequence, String session) {
+            this.frame = frame;
+            this.sequence = sequence;
+            this.session = session;
+        }
+    }
+
+    /**
+     * The limits for message history, shared by every channel.
+     */
+    public static final class Limits {
+        private final int maxMessages;
+        private final long maxBytes;
+        private final long budgetBytes;
+        /** The bytes kept by every channel */
+        private final AtomicLong usedBytes = new AtomicLong();
+
+        /**
+         * Creates new limits.
+         *
+         * @param maxMessages the max number of messages kept per channel
+         * @param maxBytes the max total size of the messages kept per channel
+         * @param budgetBytes the max total size of the messages kept by all channels
+         */
+        public Limits(int maxMessages, long maxBytes, long budgetBytes) {
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.budgetBytes = budgetBytes;
+        }
+
+        public boolean isEnabled() {
+            return this.maxMessages > 0 && this.maxBytes > 0 && this.budgetBytes > 0;
+        }
+
+        private boolean reserve(long size) {
+            long used;
+            do {
+                used = this.usedBytes.get();
+                if (used + size > this.budgetBytes) {
+                    return false;
+                }
+            } while (!this.usedBytes.compareAndSet(used, used + size));
+            HISTORY_BYTES_GAUGE.inc(size);
+            return true;
+        }
+
+        private void release(long size) {
+            this.usedBytes.addAndGet(-size);
+            HISTORY_BYTES_GAUGE.dec(size);
+        }
+    }
+
+}
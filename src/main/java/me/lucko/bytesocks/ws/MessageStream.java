@@ -0,0 +1,120 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.jooby.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.prometheus.client.Counter;
+
+/**
+ * A fragmented message being relayed frame by frame, as each frame arrives.
+ *
+ * <p>The recipients are fixed when the stream begins - clients that join part way
+ * through don't receive the message. Each frame is shared between the recipients
+ * in the same way as a complete message.</p>
+ *
+ * <p>Only used from the sender's event loop.</p>
+ */
+final class MessageStream {
+
+    public static final Counter STREAMED_COUNTER = Counter.build()
+            .name("bytesocks_streamed_messages_total")
+            .help("The number of fragmented messages relayed as they arrived")
+            .labelNames("result")
+            .register();
+
+    /** The channel */
+    private final Channel channel;
+    /** The client sending the message */
+    private final Client sender;
+    /** The clients receiving the message */
+    private final Client[] recipients;
+    /** If the message is binary */
+    private final boolean binary;
+    /** The max total size of the message */
+    private final long maxBytes;
+    /** The size of the message so far */
+    private long bytes = 0;
+
+    MessageStream(Channel channel, Client sender, Client[] recipients, boolean binary, long maxBytes) {
+        this.channel = channel;
+        this.sender = sender;
+        this.recipients = recipients;
+        this.binary = binary;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Relays the next frame of the message, taking ownership of it.
+     *
+     * @param frame the frame
+     * @return false if the message has grown too big, in which case it has been
+     *         aborted and the sender is being closed
+     */
+    boolean relay(WebSocketFrame frame) {
+        try {
+            this.bytes += frame.content().readableBytes();
+            if (this.bytes > this.maxBytes) {
+                abort();
+                this.sender.getSocket().close(WebSocketCloseStatus.TOO_BIG_TO_PROCESS);
+                STREAMED_COUNTER.labels("too_big").inc();
+                return false;
+            }
+
+            for (Client recipient : this.recipients) {
+                recipient.send(frame.retainedDuplicate(), this, 0, null);
+            }
+
+            if (frame.isFinalFragment()) {
+                this.channel.messageRelayed(this.sender, this.binary, this.bytes);
+                STREAMED_COUNTER.labels("complete").inc();
+            }
+            return true;
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Abandons the message before it is complete.
+     *
+     * <p>Recipients that have already been sent part of it are closed.</p>
+     */
+    void abort() {
+        for (Client recipient : this.recipients) {
+            recipient.abortStream(this);
+        }
+    }
+
+    /**
+     * Called when the sender disconnects part way through the message.
+     */
+    void senderClosed() {
+        abort();
+        STREAMED_COUNTER.labels("interrupted").inc();
+    }
+
+}
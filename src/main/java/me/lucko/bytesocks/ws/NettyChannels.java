@@ -0,0 +1,124 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.jooby.Context;
+import io.jooby.WebSocket;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Optional;
+
+/**
+ * Locates the underlying netty {@link Channel} for a jooby {@link WebSocket} or {@link Context}.
+ *
+ * <p>jooby doesn't expose the transport, so we walk the fields of its (internal)
+ * implementation classes until we find the handler context. The lookup is done
+ * once per socket and the fields are cached per implementation class.</p>
+ */
+final class NettyChannels {
+    private NettyChannels() {}
+
+    /** The max number of wrapper objects to unwrap before giving up */
+    private static final int MAX_DEPTH = 4;
+
+    private static final ClassValue<Optional<Field>> HANDLER_CONTEXT_FIELDS = new ClassValue<>() {
+        @Override
+        protected Optional<Field> computeValue(Class<?> type) {
+            return findField(type, ChannelHandlerContext.class);
+        }
+    };
+
+    private static final ClassValue<Optional<Field>> CONTEXT_FIELDS = new ClassValue<>() {
+        @Override
+        protected Optional<Field> computeValue(Class<?> type) {
+            return findField(type, Context.class);
+        }
+    };
+
+    /**
+     * Gets the netty channel backing the given socket.
+     *
+     * @param socket the socket
+     * @return the channel, or null if it could not be located
+     */
+    static Channel get(WebSocket socket) {
+        return find(socket);
+    }
+
+    /**
+     * Gets the netty channel backing the given request context.
+     *
+     * @param ctx the context
+     * @return the channel, or null if it could not be located
+     */
+    static Channel get(Context ctx) {
+        return find(ctx);
+    }
+
+    private static Channel find(Object object) {
+        Object current = object;
+        for (int i = 0; i < MAX_DEPTH && current != null; i++) {
+            Optional<Field> handlerContext = HANDLER_CONTEXT_FIELDS.get(current.getClass());
+            if (handlerContext.isPresent()) {
+                ChannelHandlerContext ctx = (ChannelHandlerContext) read(handlerContext.get(), current);
+                return ctx == null ? null : ctx.channel();
+            }
+
+            Optional<Field> context = CONTEXT_FIELDS.get(current.getClass());
+            current = context.isPresent() ? read(context.get(), current) : null;
+        }
+        return null;
+    }
+
+    private static Optional<Field> findField(Class<?> type, Class<?> fieldType) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || !fieldType.isAssignableFrom(field.getType())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    return Optional.of(field);
+                } catch (RuntimeException e) {
+                    // inaccessible, keep looking
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Object read(Field field, Object instance) {
+        try {
+            return field.get(instance);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,655 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import me.lucko.bytesocks.metrics.LatencyMonitor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of frames waiting to be written to a {@link Client}.
+ *
+ * <p>Frames are passed straight to netty while the channel is writable, and held
+ * in the queue otherwise. The budget covers both the frames held here and those
+ * already in netty's outbound buffer. When it is exhausted the configured
+ * {@link OverflowPolicy} is applied.</p>
+ *
+ * <p>Writes aren't flushed individually. Instead, a single flush is scheduled after
+ * the first unflushed write, to run at the end of the current event loop iteration
+ * (or after a configurable delay), so a burst of messages is written to the socket
+ * together.</p>
+ *
+ * <p>Frames of a streamed (fragmented) message can't be interleaved with other
+ * messages, so while one is being written, frames from other senders are deferred
+ * until it is complete. Streamed frames can't be dropped either, so if the budget
+ * is exceeded while one is queued the client is closed, whatever the policy.</p>
+ *
+ * <p>Messages in {@link ChannelFeature#CONFLATE} channels may carry a key. A held
+ * message is superseded by a newer message with the same key, which takes its place
+ * in the queue, so a backlogged client is only sent the latest message for each key.
+ * Keys are slices of the original message, compared by content, so they don't
+ * need to be decoded.</p>
+ *
+ * <p>Frames for messages sampled by the {@link LatencyMonitor} carry the time they
+ * were received, and are timed through the queue until the write completes.</p>
+ *
+ * <p>All methods must be called from the client's event loop.</p>
+ */
+public final class OutboundQueue implements ChannelFutureListener {
+
+    public static final Gauge QUEUED_MESSAGES_GAUGE = Gauge.build()
+            .name("bytesocks_outbound_queued_messages")
+            .help("The number of messages held in outbound queues waiting for slow clients")
+            .labelNames("useragent")
+            .register();
+
+    public static final Gauge QUEUED_BYTES_GAUGE = Gauge.build()
+            .name("bytesocks_outbound_queued_bytes")
+            .help("The size of messages held in outbound queues waiting for slow clients")
+            .labelNames("useragent")
+            .register();
+
+    public static final Counter DROPPED_COUNTER = Counter.build()
+            .name("bytesocks_outbound_dropped_total")
+            .help("The number of messages not delivered because a client's outbound budget was full")
+            .labelNames("useragent", "policy")
+            .register();
+
+    public static final Counter CONFLATED_COUNTER = Counter.build()
+            .name("bytesocks_outbound_conflated_total")
+            .help("The number of held messages dropped because a newer message with the same key arrived")
+            .labelNames("useragent")
+            .register();
+
+    public static final Counter FLUSHES_COUNTER = Counter.build()
+            .name("bytesocks_outbound_flushes_total")
+            .help("The number of times outbound writes were flushed to clients")
+            .register();
+
+    /** The status to close clients with if a message being streamed to them is abandoned */
+    private static final int STREAM_ABORTED_CLOSE_STATUS = 1011; // internal error
+    /** How long to wait for the close frame to be written before closing the connection anyway */
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    /** The netty channel to write to */
+    private final io.netty.channel.Channel channel;
+    /** The limits */
+    private final Limits limits;
+    /**
+     * Frames waiting for the channel to become writable.
+     *
+     * <p>Each entry is either a {@link WebSocketFrame}, or a {@link Slot} for a message
+     * with a conflation key, so that messages without one don't need a wrapper.</p>
+     */
+    private final ArrayDeque<Object> held = new ArrayDeque<>();
+    /** The total size of frames in {@link #held} and {@link #deferred} */
+    private long heldBytes = 0;
+    /** The number of frames in {@link #held} that are part of a streamed message */
+    private int heldFragments = 0;
+    /** The streamed message currently being written, or null */
+    private Object stream = null;
+    /** Frames that arrived while another message was being streamed */
+    private final ArrayDeque<Deferred> deferred = new ArrayDeque<>();
+    /** The latest held slot for each conflation key, keyed by the slot's own key */
+    private final Map<ByteBuf, Slot> heldByKey = new HashMap<>();
+    /** The timings of sampled frames (not slots) in {@link #held}, in the same order */
+    private final ArrayDeque<Timing> heldTimings = new ArrayDeque<>();
+    /** The number of writes passed to netty that haven't completed yet */
+    private int inFlight = 0;
+    /** If the client has been closed by the queue */
+    private boolean closed = false;
+    /** If a flush has been scheduled for the writes passed to netty */
+    private boolean flushScheduled = false;
+    /** Flushes the channel, run once per batch of writes */
+    private final Runnable flushTask = this::flush;
+
+    // metrics, resolved once per client
+    private final Gauge.Child queuedMessages;
+    private final Gauge.Child queuedBytes;
+    private final Counter.Child dropped;
+    private final Counter.Child conflated;
+
+    OutboundQueue(io.netty.channel.Channel channel, Limits limits, String label) {
+        this.channel = channel;
+        this.limits = limits;
+        this.queuedMessages = QUEUED_MESSAGES_GAUGE.labels(label);
+        this.queuedBytes = QUEUED_BYTES_GAUGE.labels(label);
+        this.dropped = DROPPED_COUNTER.labels(label, limits.policy.id);
+        this.conflated = CONFLATED_COUNTER.labels(label);
+    }
+
+    /**
+     * Adds a frame to the queue, taking ownership of it.
+     *
+     * @param frame the frame
+     */
+    void offer(WebSocketFrame frame) {
+        offer(frame, null, 0, null);
+    }
+
+    /**
+     * Adds a frame to the queue, taking ownership of it and its key.
+     *
+     * @param frame the frame
+     * @param stream the streamed message the frame is part of, or null if it is a complete message
+     * @param receivedAt when the message was received if it is being timed, otherwise 0
+     * @param key the conflation key of the message, or null
+     */
+    void offer(WebSocketFrame frame, Object stream, long receivedAt, ByteBuf key) {
+        if (this.closed || !this.channel.isActive()) {
+            frame.release();
+            releaseKey(key);
+            return;
+        }
+
+        if (this.stream != null && stream != this.stream) {
+            // another message is part way through being written
+            int size = frame.content().readableBytes();
+            if (overBudget(size)) {
+                release(frame);
+                releaseKey(key);
+                overflow();
+                return;
+            }
+
+            this.deferred.add(new Deferred(frame, stream, receivedAt, receivedAt == 0 ? 0 : System.nanoTime(), key));
+            this.heldBytes += size;
+            this.queuedMessages.inc();
+            this.queuedBytes.inc(size);
+            return;
+        }
+
+        if (!enqueue(frame, stream, receivedAt, receivedAt == 0 ? 0 : System.nanoTime(), key)) {
+            releaseKey(key);
+        }
+        if (this.stream == null && !this.deferred.isEmpty()) {
+            undefer();
+        }
+    }
+
+    /**
+     * Abandons a streamed message that won't be completed.
+     *
+     * <p>Any of its frames that are still deferred are discarded. If the client
+     * has already been sent part of the message, it has to be closed.</p>
+     *
+     * @param stream the streamed message
+     */
+    void abort(Object stream) {
+        Iterator<Deferred> it = this.deferred.iterator();
+        while (it.hasNext()) {
+            Deferred next = it.next();
+            if (next.stream == stream) {
+                it.remove();
+                unhold(next.frame);
+                release(next.frame);
+                releaseKey(next.key);
+            }
+        }
+
+        if (this.stream == stream) {
+            this.stream = null;
+            close(STREAM_ABORTED_CLOSE_STATUS, "Message stream interrupted");
+        } else if (this.stream == null && !this.deferred.isEmpty()) {
+            undefer();
+        }
+    }
+
+    /**
+     * Writes or holds a frame, taking ownership of it.
+     *
+     * @param frame the frame
+     * @param stream the streamed message the frame is part of, or null
+     * @param receivedAt when the message was received if it is being timed, otherwise 0
+     * @param offeredAt when the message was offered if it is being timed, otherwise 0
+     * @param key the conflation key of the message, or null
+     * @return if the key is now held by the queue, otherwise the caller should release it
+     */
+    private boolean enqueue(WebSocketFrame frame, Object stream, long receivedAt, long offeredAt, ByteBuf key) {
+        int size = frame.content().readableBytes();
+        boolean fragment = isFragment(frame);
+        if (stream != null) {
+            this.stream = frame.isFinalFragment() ? null : stream;
+        }
+
+        if (key != null && supersede(key, frame, receivedAt, offeredAt)) {
+            return false;
+        }
+
+        if (overBudget(size)) {
+            if (fragment || this.heldFragments != 0 || this.stream != null) {
+                // part of the message may already have been written, so it can't be dropped
+                release(frame);
+                overflow();
+                return false;
+            }
+
+            switch (this.limits.policy) {
+                case DROP_OLDEST:
+                    while (!this.held.isEmpty() && overBudget(size)) {
+                        Object oldest = poll();
+                        if (oldest instanceof Slot) {
+                            release(((Slot) oldest).frame);
+                        } else {
+                            pollTiming((WebSocketFrame) oldest);
+                            release((WebSocketFrame) oldest);
+                        }
+                    }
+                    if (overBudget(size)) {
+                        release(frame);
+                        return false;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    release(frame);
+                    return false;
+                case CLOSE:
+                    release(frame);
+                    overflow();
+                    return false;
+                default:
+                    throw new AssertionError(this.limits.policy);
+            }
+        }
+
+        if (this.held.isEmpty() && this.channel.isWritable()) {
+            write(frame, receivedAt, offeredAt);
+            return false;
+        }
+
+        boolean keyHeld = false;
+        if (key != null) {
+            Slot slot = new Slot(key, frame, receivedAt, offeredAt);
+            this.held.add(slot);
+            // replace the mapping rather than just its value, so the map holds this slot's key
+            // and not that of an older slot, which is released when that slot is polled
+            this.heldByKey.remove(key);
+            this.heldByKey.put(key, slot);
+            keyHeld = true;
+        } else {
+            this.held.add(frame);
+            if (receivedAt != 0) {
+                this.heldTimings.add(new Timing(frame, receivedAt, offeredAt));
+            }
+        }
+        this.heldBytes += size;
+        if (fragment) {
+            this.heldFragments++;
+        }
+        this.queuedMessages.inc();
+        this.queuedBytes.inc(size);
+        return keyHeld;
+    }
+
+    /**
+     * Replaces the held message with the given conflation key, if there is one, in its
+     * place in the queue.
+     *
+     * @param key the key
+     * @param frame the new frame
+     * @param receivedAt when the new message was received if it is being timed, otherwise 0
+     * @param offeredAt when the new message was offered if it is being timed, otherwise 0
+     * @return if the held message was replaced
+     */
+    private boolean supersede(ByteBuf key, WebSocketFrame frame, long receivedAt, long offeredAt) {
+        Slot slot = this.heldByKey.get(key);
+        if (slot == null) {
+            return false;
+        }
+
+        int size = frame.content().readableBytes();
+        int growth = size - slot.frame.content().readableBytes();
+        if (growth > 0 && overByteBudget(growth)) {
+            // let the overflow policy deal with it as a new message
+            return false;
+        }
+
+        unhold(slot.frame);
+        slot.frame.release();
+        this.conflated.inc();
+
+        slot.frame = frame;
+        slot.receivedAt = receivedAt;
+        slot.offeredAt = offeredAt;
+        this.heldBytes += size;
+        this.queuedMessages.inc();
+        this.queuedBytes.inc(size);
+        return true;
+    }
+
+    /**
+     * Moves deferred frames into the queue, now that the streamed message they
+     * were waiting for is complete.
+     */
+    private void undefer() {
+        Iterator<Deferred> it = this.deferred.iterator();
+        while (it.hasNext()) {
+            Deferred next = it.next();
+            if (this.stream != null && next.stream != this.stream) {
+                // waiting for the current stream to finish
+                continue;
+            }
+
+            it.remove();
+            unhold(next.frame);
+            if (!enqueue(next.frame, next.stream, next.receivedAt, next.offeredAt, next.key)) {
+                releaseKey(next.key);
+            }
+            if (this.closed) {
+                return;
+            }
+            if (this.stream == null) {
+                // start again from the front in case anything was skipped
+                it = this.deferred.iterator();
+            }
+        }
+    }
+
+    /**
+     * Writes held frames to netty until the channel stops being writable.
+     */
+    void drain() {
+        while (!this.held.isEmpty() && this.channel.isWritable()) {
+            Object entry = poll();
+            if (entry instanceof Slot) {
+                Slot slot = (Slot) entry;
+                write(slot.frame, slot.receivedAt, slot.offeredAt);
+                continue;
+            }
+
+            WebSocketFrame frame = (WebSocketFrame) entry;
+            Timing timing = pollTiming(frame);
+            if (timing == null) {
+                write(frame, 0, 0);
+            } else {
+                write(frame, timing.receivedAt, timing.offeredAt);
+            }
+        }
+    }
+
+    /**
+     * Releases all held frames, called when the client disconnects.
+     */
+    void clear() {
+        while (!this.held.isEmpty()) {
+            frameOf(poll()).release();
+        }
+        this.heldTimings.clear();
+        this.heldByKey.clear();
+        while (!this.deferred.isEmpty()) {
+            Deferred next = this.deferred.poll();
+            unhold(next.frame);
+            next.frame.release();
+            releaseKey(next.key);
+        }
+        this.stream = null;
+    }
+
+    private boolean overBudget(int size) {
+        if (this.inFlight + this.held.size() + this.deferred.size() + 1 > this.limits.maxMessages) {
+            return true;
+        }
+
+        return overByteBudget(size);
+    }
+
+    private boolean overByteBudget(int size) {
+        ChannelOutboundBuffer outboundBuffer = this.channel.unsafe().outboundBuffer();
+        long pendingBytes = outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes();
+        return pendingBytes + this.heldBytes + size > this.limits.maxBytes;
+    }
+
+    private Object poll() {
+        Object entry = this.held.poll();
+        WebSocketFrame frame = frameOf(entry);
+        unhold(frame);
+        if (isFragment(frame)) {
+            this.heldFragments--;
+        }
+        if (entry instanceof Slot) {
+            Slot slot = (Slot) entry;
+            this.heldByKey.remove(slot.key, slot);
+            slot.key.release();
+        }
+        return entry;
+    }
+
+    private static WebSocketFrame frameOf(Object entry) {
+        return entry instanceof Slot ? ((Slot) entry).frame : (WebSocketFrame) entry;
+    }
+
+    private Timing pollTiming(WebSocketFrame frame) {
+        Timing timing = this.heldTimings.peek();
+        if (timing == null || timing.frame != frame) {
+            return null;
+        }
+        return this.heldTimings.poll();
+    }
+
+    private void unhold(WebSocketFrame frame) {
+        int size = frame.content().readableBytes();
+        this.heldBytes -= size;
+        this.queuedMessages.dec();
+        this.queuedBytes.dec(size);
+    }
+
+    private static boolean isFragment(WebSocketFrame frame) {
+        return !frame.isFinalFragment() || frame instanceof ContinuationWebSocketFrame;
+    }
+
+    private void write(WebSocketFrame frame, long receivedAt, long offeredAt) {
+        this.inFlight++;
+
+        ChannelFuture future;
+        long flushDelay = this.limits.flushDelayNanos;
+        if (flushDelay < 0) {
+            // coalescing disabled
+            future = this.channel.writeAndFlush(frame).addListener(this);
+        } else {
+            future = this.channel.write(frame).addListener(this);
+            scheduleFlush(flushDelay);
+        }
+
+        if (receivedAt != 0) {
+            LatencyMonitor.queueWait(offeredAt, System.nanoTime());
+            future.addListener(f -> {
+                // failed writes (e.g. the client disconnected) would skew the latency
+                if (f.isSuccess()) {
+                    LatencyMonitor.written(receivedAt);
+                }
+            });
+        }
+    }
+
+    private void scheduleFlush(long flushDelay) {
+        if (!this.flushScheduled) {
+            this.flushScheduled = true;
+            if (flushDelay == 0) {
+                this.channel.eventLoop().execute(this.flushTask);
+            } else {
+                this.channel.eventLoop().schedule(this.flushTask, flushDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void flush() {
+        this.flushScheduled = false;
+        this.channel.flush();
+        FLUSHES_COUNTER.inc();
+    }
+
+    private void release(WebSocketFrame frame) {
+        frame.release();
+        this.dropped.inc();
+    }
+
+    private static void releaseKey(ByteBuf key) {
+        if (key != null) {
+            key.release();
+        }
+    }
+
+    private void overflow() {
+        close(this.limits.closeStatus, "Outbound buffer full");
+    }
+
+    private void close(int status, String reason) {
+        this.closed = true;
+        clear();
+
+        // the close frame is queued behind the backlog, which a stalled client may never
+        // read, so don't wait long for it before dropping the connection (and the backlog)
+        ChannelFuture future = this.channel.writeAndFlush(new CloseWebSocketFrame(status, reason))
+                .addListener(ChannelFutureListener.CLOSE);
+        if (!future.isDone()) {
+            this.channel.eventLoop().schedule(() -> this.channel.close(), CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) {
+        this.inFlight--;
+    }
+
+    /** A frame waiting for a streamed message to complete */
+    private static final class Deferred {
+        private final WebSocketFrame frame;
+        private final Object stream;
+        private final long receivedAt;
+        private final long offeredAt;
+        private final ByteBuf key;
+
+        Deferred(WebSocketFrame frame, Object stream, long receivedAt, long offeredAt, ByteBuf key) {
+            this.frame = frame;
+            this.stream = stream;
+            this.receivedAt = receivedAt;
+            this.offeredAt = offeredAt;
+            this.key = key;
+        }
+    }
+
+    /** A held message with a conflation key, which a newer message with the same key replaces */
+    private static final class Slot {
+        private final ByteBuf key;
+        private WebSocketFrame frame;
+        private long receivedAt;
+        private long offeredAt;
+
+        Slot(ByteBuf key, WebSocketFrame frame, long receivedAt, long offeredAt) {
+            this.key = key;
+            this.frame = frame;
+            this.receivedAt = receivedAt;
+            this.offeredAt = offeredAt;
+        }
+    }
+
+    /** The timing of a sampled frame waiting in {@link #held} */
+    private static final class Timing {
+        private final WebSocketFrame frame;
+        private final long receivedAt;
+        private final long offeredAt;
+
+        Timing(WebSocketFrame frame, long receivedAt, long offeredAt) {
+            this.frame = frame;
+            this.receivedAt = receivedAt;
+            this.offeredAt = offeredAt;
+        }
+    }
+
+    /**
+     * What to do when a client's outbound budget is full.
+     */
+    public enum OverflowPolicy {
+
+        /** Drop held messages, oldest first, to make room for the new one */
+        DROP_OLDEST("drop-oldest"),
+
+        /** Drop the new message */
+        DROP_NEWEST("drop-newest"),
+
+        /** Close the connection */
+        CLOSE("close");
+
+        private final String id;
+
+        OverflowPolicy(String id) {
+            this.id = id;
+        }
+
+        public static OverflowPolicy parse(String id) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.id.equals(id.toLowerCase(Locale.ROOT))) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown overflow policy: " + id);
+        }
+    }
+
+    /**
+     * The outbound budget for each client.
+     */
+    public static final class Limits {
+        private final long maxBytes;
+        private final int maxMessages;
+        private final OverflowPolicy policy;
+        private final int closeStatus;
+        private final long flushDelayNanos;
+
+        /**
+         * Creates a new outbound budget.
+         *
+         * @param maxBytes the max number of bytes waiting to be written
+         * @param maxMessages the max number of messages waiting to be written
+         * @param policy what to do when either max is exceeded
+         * @param closeStatus the status to close with, for {@link OverflowPolicy#CLOSE}
+         * @param flushDelayMicros how long writes may wait to be flushed, 0 to flush at the end
+         *                         of the current event loop iteration, or -1 to flush every write
+         */
+        public Limits(long maxBytes, int maxMessages, OverflowPolicy policy, int closeStatus, long flushDelayMicros) {
+            this.maxBytes = maxBytes;
+            this.maxMessages = maxMessages;
+            this.policy = policy;
+            this.closeStatus = closeStatus;
+            this.flushDelayNanos = flushDelayMicros < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+        }
+    }
+
+}
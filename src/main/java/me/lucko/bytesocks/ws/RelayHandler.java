@@ -0,0 +1,115 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+/**
+ * Netty handler that passes complete (unfragmented) data frames straight to the
+ * {@link Channel}, so the pooled buffer read off the wire can be shared by every recipient.
+ *
+ * <p>If streaming is enabled, fragmented messages are relayed the same way, frame by
+ * frame through a {@link MessageStream}, instead of being aggregated first.</p>
+ *
+ * <p>Control frames (and fragmented messages, if streaming isn't possible) continue
+ * down the pipeline to jooby. The handler also drives the client's {@link OutboundQueue}.</p>
+ */
+final class RelayHandler extends ChannelInboundHandlerAdapter {
+    private final Client client;
+    /** If data frames should be relayed, false if the handler isn't positioned after the frame decoder */
+    private final boolean relayFrames;
+    /** The fragmented message currently being streamed from the client, or null */
+    private MessageStream stream;
+    /** If the rest of the current fragmented message should be discarded */
+    private boolean discarding;
+
+    RelayHandler(Client client, boolean relayFrames) {
+        this.client = client;
+        this.relayFrames = relayFrames;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!this.relayFrames) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            Channel channel = this.client.getChannel();
+            if (frame.isFinalFragment()) {
+                channel.relay(this.client, frame);
+            } else if (channel.canStream()) {
+                this.stream = channel.beginStream(this.client, frame);
+                this.discarding = this.stream == null;
+            } else {
+                // jooby aggregates the message without its opcode, so remember it for onMessage
+                this.client.setAggregatingBinary(msg instanceof BinaryWebSocketFrame);
+                ctx.fireChannelRead(msg);
+            }
+        } else if (msg instanceof ContinuationWebSocketFrame && (this.stream != null || this.discarding)) {
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            boolean last = frame.isFinalFragment();
+            if (this.discarding) {
+                frame.release();
+            } else if (!this.stream.relay(frame)) {
+                this.stream = null;
+                this.discarding = true;
+            }
+
+            if (last) {
+                this.stream = null;
+                this.discarding = false;
+            }
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        this.client.getOutboundQueue().drain();
+        this.client.getChannel().writabilityChanged(this.client, ctx.channel().isWritable());
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (this.stream != null) {
+            this.stream.senderClosed();
+            this.stream = null;
+        }
+        this.client.getOutboundQueue().clear();
+        ctx.fireChannelInactive();
+    }
+
+}
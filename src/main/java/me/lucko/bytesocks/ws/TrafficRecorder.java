@@ -0,0 +1,223 @@
+/*
+ * This file is part of bytesocks, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.bytesocks.ws;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the shape of channel traffic to an append-only, memory-mapped log, so
+ * that it can be replayed against a local server later.
+ *
+ * <p>Only metadata is recorded: when channels are created and closed, when clients
+ * join and leave, and the size of each message. Channels and clients are identified
+ * by sequential numbers rather than their real ids or addresses.</p>
+ *
+ * <p>The file is a sequence of fixed-size little-endian records. The first is a
+ * header ({@link #MAGIC}, {@link #VERSION}, then the start time in epoch millis).
+ * Each subsequent record holds:</p>
+ * <ul>
+ *     <li>the time since recording started, in nanoseconds (long)</li>
+ *     <li>the {@link Event} id (int)</li>
+ *     <li>the channel number (int)</li>
+ *     <li>the client number, or 0 (int)</li>
+ *     <li>the message size, or the channel's features as a bitmask for {@link Event#CREATE} (int)</li>
+ * </ul>
+ *
+ * <p>Records are appended by reserving a slot with a single atomic increment, so
+ * they are only roughly in time order. A slot that was reserved but never written
+ * (e.g. if the process crashed) reads back as an event id of 0.</p>
+ */
+public final class TrafficRecorder implements AutoCloseable {
+
+    /** Logger instance */
+    private static final Logger LOGGER = LogManager.getLogger(TrafficRecorder.class);
+
+    /** Identifies a traffic recording ("BSTR") */
+    public static final int MAGIC = 0x42535452;
+    /** The version of the file format */
+    public static final int VERSION = 1;
+    /** The size of each record (and the header), in bytes */
+    public static final int RECORD_SIZE = 24;
+
+    /** The number of records in each mapped region of the file */
+    private static final int SEGMENT_RECORDS = 1 << 21;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_SIZE;
+
+    public enum Event {
+        CREATE(1),
+        JOIN(2),
+        LEAVE(3),
+        TEXT_MESSAGE(4),
+        BINARY_MESSAGE(5),
+        CLOSE(6);
+
+        private final int id;
+
+        Event(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        public static Event byId(int id) {
+            for (Event event : values()) {
+                if (event.id == id) {
+                    return event;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel file;
+    private final long startNanos = System.nanoTime();
+    private final long maxRecords;
+
+    /** The mapped regions of the file, mapped lazily as the log grows */
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+    /** The next record slot to write to (slot 0 is the header) */
+    private final AtomicLong nextRecord = new AtomicLong(1);
+    /** If recording has stopped, because the file is full or couldn't be mapped */
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    private final AtomicInteger nextChannelNumber = new AtomicInteger();
+    private final AtomicInteger nextClientNumber = new AtomicInteger();
+
+    /**
+     * Starts a new recording, in a new file in the given directory.
+     *
+     * @param directory the directory to write to
+     * @param maxBytes the max size of the file
+     * @throws IOException if the file can't be created
+     */
+    public TrafficRecorder(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        long startMillis = System.currentTimeMillis();
+        this.path = directory.resolve("traffic-" + startMillis + ".bin");
+        this.file = FileChannel.open(this.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxRecords = Math.max(2, maxBytes / RECORD_SIZE);
+        this.segments = new AtomicReferenceArray<>((int) ((this.maxRecords + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS));
+
+        MappedByteBuffer header = segment(0);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putLong(8, startMillis);
+
+        LOGGER.info("Recording traffic to " + this.path);
+    }
+
+    int newChannelNumber() {
+        return this.nextChannelNumber.incrementAndGet();
+    }
+
+    int newClientNumber() {
+        return this.nextClientNumber.incrementAndGet();
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param event the event
+     * @param channel the channel number
+     * @param client the client number, or 0
+     * @param value the message size or channel features
+     */
+    void record(Event event, int channel, int client, int value) {
+        long time = System.nanoTime() - this.startNanos;
+        long slot = this.nextRecord.getAndIncrement();
+        if (slot >= this.maxRecords) {
+            if (this.stopped.compareAndSet(false, true)) {
+                LOGGER.warn("Traffic recording " + this.path + " is full, no longer recording");
+            }
+            return;
+        }
+
+        MappedByteBuffer segment = segment((int) (slot / SEGMENT_RECORDS));
+        if (segment == null) {
+            return;
+        }
+
+        int offset = (int) (slot % SEGMENT_RECORDS) * RECORD_SIZE;
+        segment.putLong(offset, time);
+        segment.putInt(offset + 12, channel);
+        segment.putInt(offset + 16, client);
+        segment.putInt(offset + 20, value);
+        segment.putInt(offset + 8, event.id);
+    }
+
+    private MappedByteBuffer segment(int index) {
+        MappedByteBuffer segment = this.segments.get(index);
+        if (segment != null) {
+            return segment;
+        }
+
+        synchronized (this.segments) {
+            segment = this.segments.get(index);
+            if (segment == null && !this.stopped.get()) {
+                long position = index * SEGMENT_BYTES;
+                long size = Math.min(SEGMENT_BYTES, this.maxRecords * RECORD_SIZE - position);
+                try {
+                    segment = this.file.map(FileChannel.MapMode.READ_WRITE, position, size);
+                    segment.order(ByteOrder.LITTLE_ENDIAN);
+                    this.segments.set(index, segment);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to map traffic recording " + this.path + ", no longer recording", e);
+                    this.stopped.set(true);
+                }
+            }
+            return segment;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.stopped.set(true);
+        for (int i = 0; i < this.segments.length(); i++) {
+            MappedByteBuffer segment = this.segments.get(i);
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        this.file.close();
+    }
+
+}